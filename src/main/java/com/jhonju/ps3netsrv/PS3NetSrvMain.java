@@ -2,10 +2,22 @@ package com.jhonju.ps3netsrv;
 
 import com.jhonju.ps3netsrv.server.PS3NetSrvTask;
 import com.jhonju.ps3netsrv.server.enums.EListType;
+import com.jhonju.ps3netsrv.server.enums.EServerEngine;
+import com.jhonju.ps3netsrv.server.io.DecryptedSectorCache;
+import com.jhonju.ps3netsrv.server.io.EncryptionMetadataCache;
+import com.jhonju.ps3netsrv.server.io.FileHandleCache;
+import com.jhonju.ps3netsrv.server.io.MappedFile;
+import com.jhonju.ps3netsrv.server.io.ShadowImageCache;
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
+import com.jhonju.ps3netsrv.server.utils.SectorDecryptor;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,11 +26,18 @@ public class PS3NetSrvMain {
     public static void main(String[] args) {
         System.out.println("ps3netsrv-java version 0.4 Alpha");
         Map<String, String> options = new HashMap<>();
+        options.put("-A", "");
+        options.put("-C", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        options.put("-D", "");
+        options.put("-E", "CLASSIC");
         options.put("-F", System.getProperty("user.dir"));
         options.put("-I", "");
         options.put("-M", "0");
+        options.put("-O", String.valueOf(FileHandleCache.DEFAULT_MAX_OPEN_FILES));
         options.put("-P", "38008");
+        options.put("-Q", String.valueOf(ShadowImageCache.DEFAULT_QUOTA_MB));
         options.put("-R", "false");
+        options.put("-S", String.valueOf(DecryptedSectorCache.DEFAULT_SIZE_MB));
         options.put("-T", "NONE");
 
         for (int i = 0; i < args.length; i += 2) {
@@ -36,8 +55,42 @@ public class PS3NetSrvMain {
         String folderPath = options.get("-F");
         int port = Integer.parseInt(options.get("-P"));
         int maxConnections = Integer.parseInt(options.get("-M"));
+        FileHandleCache.setMaxOpenFiles(Integer.parseInt(options.get("-O")));
+        try {
+            List<File> mappedRoots = new ArrayList<>();
+            for (String mappedRoot : options.get("-A").split(",")) {
+                if (!mappedRoot.isEmpty())
+                    mappedRoots.add(new File(mappedRoot));
+            }
+            MappedFile.setMappedRoots(mappedRoots);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        SectorDecryptor.setParallelism(Integer.parseInt(options.get("-C")));
+        DecryptedSectorCache.setSizeMB(Integer.parseInt(options.get("-S")));
+        if (!options.get("-D").isEmpty()) {
+            try {
+                ShadowImageCache.setCacheDirectory(new File(options.get("-D")), new File(folderPath),
+                        Long.parseLong(options.get("-Q")));
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
         boolean readOnly = Boolean.parseBoolean(options.get("-R"));
+        EncryptionMetadataCache.load(new File(folderPath),
+                options.get("-D").isEmpty() ? null : new File(options.get("-D")), readOnly);
         EListType listType = EListType.valueOf("LIST_TYPE_" + options.get("-T"));
+        EServerEngine engine;
+        try {
+            engine = EServerEngine.valueOf("ENGINE_" + options.get("-E"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid engine: " + options.get("-E"));
+            printHelp();
+            System.exit(1);
+            return;
+        }
 
         Set<String> filterAddresses = new HashSet<>();
         String[] filterAddressArray = options.get("-I").split(",");
@@ -47,9 +100,15 @@ public class PS3NetSrvMain {
         System.out.println("Server is running at " + folderPath);
 
         PS3NetSrvTask server = new PS3NetSrvTask(port, folderPath, maxConnections, readOnly, filterAddresses, listType,
-                (thread, throwable) -> System.err
+                engine, (thread, throwable) -> System.err
                         .println((thread != null ? thread.getId() : "Unknown") + " " + throwable.getMessage()));
 
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(BufferPool.getStatistics());
+            System.out.println(SectorDecryptor.getStatistics());
+            System.out.println(DecryptedSectorCache.getStatistics());
+        }));
+
         server.run();
         System.out.println("Server end");
     }
@@ -57,11 +116,21 @@ public class PS3NetSrvMain {
     private static void printHelp() {
         System.out.println("Usage: ps3netsrv [OPTIONS]");
         System.out.println("Options:");
+        System.out.println("  -A <path>      Memory-map files under these folders (separate multiple with comma)");
+        System.out.println("  -C <number>    Decryption threads for large encrypted reads, 1 disables (default: CPUs)");
+        System.out.println("  -D <path>      Cache directory for decrypted copies of encrypted ISOs, outside -F (default: none)");
+        System.out.println("  -E <name>      Server engine: CLASSIC, NIO or VIRTUAL (default: CLASSIC)");
         System.out.println("  -F <path>      Folder path (default: current directory)");
         System.out.println("  -I <address>   Filter address (separate multiple ips with comma)");
         System.out.println("  -M <number>    Max. allowed connections (default: 0)");
+        System.out.println("  -O <number>    Max. open file handles shared between clients, not counting their copies"
+                + " in the cache directory (default: " + FileHandleCache.DEFAULT_MAX_OPEN_FILES + ")");
         System.out.println("  -P <number>    Port (default: 38008)");
+        System.out.println("  -Q <number>    Cache directory quota in MB (default: " + ShadowImageCache.DEFAULT_QUOTA_MB
+                + ")");
         System.out.println("  -R <true|false> Read only (default: false)");
+        System.out.println("  -S <number>    Decrypted sector cache size in MB, 0 disables (default: "
+                + DecryptedSectorCache.DEFAULT_SIZE_MB + ")");
         System.out.println("  -T <ALLOWED|BLOCKED|NONE>  List type (default: NONE)");
         System.out.println("  -H             Show this help message and exit");
     }
@@ -0,0 +1,114 @@
+package com.jhonju.ps3netsrv.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes whole buffers to a socket channel. Blocking channels are written
+ * directly; non-blocking channels (NIO engine) wait for writability on a
+ * private selector so commands can keep their blocking "send and return" style.
+ */
+public class ChannelWriter implements WritableByteChannel {
+    private static final long WRITE_TIMEOUT_MILLIS = 30000;
+
+    private final SocketChannel channel;
+    private Selector writeSelector;
+
+    public ChannelWriter(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int total = 0;
+        while (src.hasRemaining()) {
+            int written = channel.write(src);
+            if (written == 0) {
+                awaitWritable();
+            }
+            total += written;
+        }
+        return total;
+    }
+
+    /**
+     * Writes all buffers with gathering writes, e.g. a length header followed by
+     * the data, without first merging them into one array.
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        long total = 0;
+        while (hasRemaining(srcs)) {
+            long written = channel.write(srcs);
+            if (written == 0) {
+                awaitWritable();
+            }
+            total += written;
+        }
+        return total;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends {@code count} bytes of the file straight from the page cache to the
+     * socket (sendfile on Linux), without copying them through the Java heap.
+     */
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long sent = source.transferTo(position + transferred, count - transferred, channel);
+            if (sent == 0) {
+                if (position + transferred >= source.size()) {
+                    throw new EOFException("File ended before the announced length was sent");
+                }
+                awaitWritable();
+            }
+            transferred += sent;
+        }
+        return transferred;
+    }
+
+    private void awaitWritable() throws IOException {
+        if (channel.isBlocking()) {
+            return;
+        }
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        if (writeSelector.select(WRITE_TIMEOUT_MILLIS) == 0) {
+            throw new SocketTimeoutException("Timed out waiting for the client to accept data");
+        }
+        writeSelector.selectedKeys().clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Releases the writer's own resources; the socket channel is owned and
+     * closed by the {@link Context}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writeSelector != null) {
+            writeSelector.close();
+            writeSelector = null;
+        }
+    }
+}
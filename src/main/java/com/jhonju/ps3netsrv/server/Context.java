@@ -10,10 +10,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.util.List;
 
 public class Context implements AutoCloseable {
     private Socket socket;
+    private final boolean framedByEngine;
+    private ChannelWriter channelWriter;
+    private InputStream commandInput;
     private final String rootDirectory;
     private final boolean readOnly;
     private IFile file;
@@ -24,11 +29,26 @@ public class Context implements AutoCloseable {
     private List<ReadDirEntry> directoryEntries;
 
     public Context(Socket socket, String rootDirectory, boolean readOnly) {
+        this(socket, rootDirectory, readOnly, false);
+    }
+
+    /**
+     * Creates a context for a non-blocking channel owned by the NIO engine. The
+     * engine frames each command itself and hands its payload over through
+     * {@link #setCommandInput(InputStream)}.
+     */
+    public Context(SocketChannel channel, String rootDirectory, boolean readOnly) {
+        this(channel.socket(), rootDirectory, readOnly, true);
+    }
+
+    private Context(Socket socket, String rootDirectory, boolean readOnly, boolean framedByEngine) {
         this.rootDirectory = rootDirectory;
         this.socket = socket;
         this.cdSectorSize = CDSectorSize.CD_SECTOR_2352;
         this.readOnly = readOnly;
         this.pathResolver = new PathResolver(rootDirectory);
+        this.framedByEngine = framedByEngine;
+        this.channelWriter = socket.getChannel() != null ? new ChannelWriter(socket.getChannel()) : null;
     }
 
     public String getRootDirectory() {
@@ -36,7 +56,7 @@ public class Context implements AutoCloseable {
     }
 
     public boolean isSocketConnected() {
-        return socket.isConnected();
+        return socket != null && socket.isConnected();
     }
 
     public CDSectorSize getCdSectorSize() {
@@ -52,18 +72,45 @@ public class Context implements AutoCloseable {
     }
 
     public InputStream getInputStream() throws IOException {
+        if (framedByEngine) {
+            if (commandInput == null)
+                throw new IOException("No command payload available");
+            return commandInput;
+        }
         return socket.getInputStream();
     }
 
+    void setCommandInput(InputStream commandInput) {
+        this.commandInput = commandInput;
+    }
+
     public OutputStream getOutputStream() throws IOException {
+        if (framedByEngine) {
+            return Channels.newOutputStream(channelWriter);
+        }
         return socket.getOutputStream();
     }
 
+    /**
+     * Returns the writer of the underlying socket channel, or null when the
+     * socket was not created from a channel and zero-copy sends are not possible.
+     */
+    public ChannelWriter getChannelWriter() {
+        return channelWriter;
+    }
+
     public IFile getFile() {
         return file;
     }
 
     public void setFile(IFile file) {
+        // Release the previous file so its shared handle can be evicted from the cache
+        if (this.file != null && this.file != file) {
+            try {
+                this.file.close();
+            } catch (IOException ignored) {
+            }
+        }
         this.file = file;
     }
 
@@ -117,6 +164,15 @@ public class Context implements AutoCloseable {
             writeOnlyFile = null;
         }
 
+        if (channelWriter != null) {
+            try {
+                channelWriter.close();
+            } catch (IOException ignored) {
+            } finally {
+                channelWriter = null;
+            }
+        }
+
         if (socket != null && !socket.isClosed()) {
             try {
                 socket.close();
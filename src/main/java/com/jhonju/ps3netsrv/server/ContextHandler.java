@@ -1,5 +1,6 @@
 package com.jhonju.ps3netsrv.server;
 
+import com.jhonju.ps3netsrv.server.commands.AbstractCommand;
 import com.jhonju.ps3netsrv.server.commands.CreateFileCommand;
 import com.jhonju.ps3netsrv.server.commands.DeleteFileCommand;
 import com.jhonju.ps3netsrv.server.commands.GetDirSizeCommand;
@@ -22,40 +23,32 @@ import com.jhonju.ps3netsrv.server.utils.Utils;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class ContextHandler extends Thread {
+public class ContextHandler implements Runnable {
     private static final byte IDX_OP_CODE = 0;
     private static final byte IDX_CMD_DATA_1 = 2;
     private static final byte IDX_CMD_DATA_2 = 4;
     private static final byte IDX_CMD_DATA_3 = 8;
-    private static final byte CMD_DATA_SIZE = 16;
+    static final byte CMD_DATA_SIZE = 16;
+    private static final AtomicInteger simultaneousConnections = new AtomicInteger();
     private final int maxConnections;
     private final Context context;
-    private static volatile int simultaneousConnections;
-
-    public synchronized void incrementSimultaneousConnections()
-    {
-        simultaneousConnections++;
-    }
-
-    public synchronized void decrementSimultaneousConnections()
-    {
-        simultaneousConnections--;
-    }
+    private final Thread.UncaughtExceptionHandler exceptionHandler;
 
     public ContextHandler(Context context, int maxConnections, Thread.UncaughtExceptionHandler exceptionHandler) {
-        super();
-        setUncaughtExceptionHandler(exceptionHandler);
+        this.exceptionHandler = exceptionHandler;
         this.context = context;
         this.maxConnections = maxConnections;
     }
 
     @Override
     public void run() {
-        incrementSimultaneousConnections();
+        int connections = simultaneousConnections.incrementAndGet();
         try (Context ctx = context) {
-            if (maxConnections > 0 && simultaneousConnections > maxConnections) {
-                getUncaughtExceptionHandler().uncaughtException(this, new PS3NetSrvException("Connection limit is reached"));
+            if (maxConnections > 0 && connections > maxConnections) {
+                exceptionHandler.uncaughtException(Thread.currentThread(),
+                        new PS3NetSrvException("Connection limit is reached"));
                 return;
             }
             while (ctx.isSocketConnected()) {
@@ -66,17 +59,45 @@ public class ContextHandler extends Thread {
                         continue;
                     handleContext(ctx, packet);
                 } catch (PS3NetSrvException e) {
-                    getUncaughtExceptionHandler().uncaughtException(this, e);
+                    exceptionHandler.uncaughtException(Thread.currentThread(), e);
                 }
             }
         } catch (IOException e) {
-            Objects.requireNonNull(getUncaughtExceptionHandler()).uncaughtException(this, e);
+            Objects.requireNonNull(exceptionHandler).uncaughtException(Thread.currentThread(), e);
         } finally {
-            decrementSimultaneousConnections();
+            simultaneousConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns how many bytes of payload follow the 16-byte command header, so
+     * engines that frame commands themselves know when a command is complete.
+     */
+    static int payloadLength(ByteBuffer buffer) {
+        ENetIsoCommand opCode = ENetIsoCommand.valueOf(buffer.getShort(IDX_OP_CODE));
+        if (opCode == null) {
+            return 0;
+        }
+        switch (opCode) {
+            case NETISO_CMD_OPEN_DIR:
+            case NETISO_CMD_STAT_FILE:
+            case NETISO_CMD_OPEN_FILE:
+            case NETISO_CMD_CREATE_FILE:
+            case NETISO_CMD_MKDIR:
+            case NETISO_CMD_RMDIR:
+            case NETISO_CMD_DELETE_FILE:
+            case NETISO_CMD_GET_DIR_SIZE:
+                return Math.max(0, buffer.getShort(IDX_CMD_DATA_1));
+            case NETISO_CMD_WRITE_FILE:
+                int numBytes = buffer.getInt(IDX_CMD_DATA_2);
+                // WriteFileCommand rejects oversized writes without reading their content
+                return (numBytes < 0 || numBytes > AbstractCommand.BUFFER_SIZE) ? 0 : numBytes;
+            default:
+                return 0;
         }
     }
 
-    private void handleContext(Context ctx, ByteBuffer buffer) throws PS3NetSrvException, IOException {
+    static void handleContext(Context ctx, ByteBuffer buffer) throws PS3NetSrvException, IOException {
         final ICommand command;
         ENetIsoCommand opCode = ENetIsoCommand.valueOf(buffer.getShort(IDX_OP_CODE));
         if (opCode == null) {
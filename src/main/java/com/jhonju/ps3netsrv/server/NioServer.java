@@ -0,0 +1,190 @@
+package com.jhonju.ps3netsrv.server;
+
+import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Selector based server engine. A single thread accepts connections and frames
+ * the 16-byte command headers (plus their payload) without blocking; completed
+ * commands run on a bounded worker pool, so idle consoles cost no thread.
+ */
+class NioServer implements Runnable {
+    private static final int WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int WORKER_QUEUE_SIZE = 1024;
+
+    private final int port;
+    private final String folderPath;
+    private final int maxConnections;
+    private final boolean readOnly;
+    private final Predicate<String> connectionFilter;
+    private final Thread.UncaughtExceptionHandler exceptionHandler;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ThreadPoolExecutor workers;
+    private volatile boolean isRunning = true;
+
+    NioServer(int port, String folderPath, int maxConnections, boolean readOnly, Predicate<String> connectionFilter,
+            Thread.UncaughtExceptionHandler exceptionHandler) {
+        this.port = port;
+        this.folderPath = folderPath;
+        this.maxConnections = maxConnections;
+        this.readOnly = readOnly;
+        this.connectionFilter = connectionFilter;
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    @Override
+    public void run() {
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "ps3netsrv-worker-" + workerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setUncaughtExceptionHandler(exceptionHandler);
+                    return thread;
+                });
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (isRunning) {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((NioSession) key.attachment()).onReadable();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (isRunning)
+                exceptionHandler.uncaughtException(Thread.currentThread(), e);
+        } finally {
+            release();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
+        }
+        String hostAddress = clientChannel.socket().getInetAddress().getHostAddress();
+        if (!connectionFilter.test(hostAddress)) {
+            exceptionHandler.uncaughtException(Thread.currentThread(),
+                    new PS3NetSrvException(String.format("Blocked connection: %s", hostAddress)));
+            closeQuietly(clientChannel);
+            return;
+        }
+        if (maxConnections > 0 && openSessions.get() >= maxConnections) {
+            exceptionHandler.uncaughtException(Thread.currentThread(),
+                    new PS3NetSrvException("Connection limit is reached"));
+            closeQuietly(clientChannel);
+            return;
+        }
+        clientChannel.configureBlocking(false);
+        NioSession session = new NioSession(this, clientChannel, new Context(clientChannel, folderPath, readOnly));
+        session.setKey(clientChannel.register(selector, SelectionKey.OP_READ, session));
+        openSessions.incrementAndGet();
+    }
+
+    void execute(NioSession session, Runnable command) {
+        try {
+            workers.execute(command);
+        } catch (RejectedExecutionException e) {
+            exceptionHandler.uncaughtException(Thread.currentThread(),
+                    new PS3NetSrvException("Worker pool is saturated, dropping connection"));
+            session.close();
+        }
+    }
+
+    /**
+     * Runs the task on the selector thread, which owns all key and framing state.
+     */
+    void runOnSelector(Runnable task) {
+        pendingTasks.add(task);
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
+
+    void sessionClosed() {
+        openSessions.decrementAndGet();
+    }
+
+    Thread.UncaughtExceptionHandler getExceptionHandler() {
+        return exceptionHandler;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
+
+    private void release() {
+        isRunning = false;
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (selector != null) {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof NioSession) {
+                    ((NioSession) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            serverChannel = null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.jhonju.ps3netsrv.server;
+
+import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
+import com.jhonju.ps3netsrv.server.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Per-connection state of the NIO engine. Framing happens on the selector
+ * thread; while a command runs on a worker, read interest is switched off so
+ * each session executes at most one command at a time, in order.
+ */
+class NioSession {
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final NioServer server;
+    private final SocketChannel channel;
+    private final Context context;
+    private final ByteBuffer header = ByteBuffer.allocate(ContextHandler.CMD_DATA_SIZE);
+    private ByteBuffer payload;
+    private SelectionKey key;
+    private boolean closed;
+
+    NioSession(NioServer server, SocketChannel channel, Context context) {
+        this.server = server;
+        this.channel = channel;
+        this.context = context;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        try {
+            if (payload == null) {
+                if (channel.read(header) < 0) {
+                    close();
+                    return;
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                if (Utils.isByteArrayEmpty(header.array())) {
+                    header.clear();
+                    return;
+                }
+                int payloadLength = ContextHandler.payloadLength(header);
+                if (payloadLength > 0) {
+                    payload = ByteBuffer.allocate(payloadLength);
+                }
+            }
+            if (payload != null) {
+                if (channel.read(payload) < 0) {
+                    close();
+                    return;
+                }
+                if (payload.hasRemaining()) {
+                    return;
+                }
+            }
+            dispatch();
+        } catch (IOException e) {
+            server.getExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            close();
+        }
+    }
+
+    private void dispatch() {
+        key.interestOps(0);
+        final byte[] commandPayload = payload != null ? payload.array() : NO_PAYLOAD;
+        server.execute(this, () -> {
+            boolean keepOpen = true;
+            try {
+                context.setCommandInput(new ByteArrayInputStream(commandPayload));
+                ContextHandler.handleContext(context, header);
+            } catch (PS3NetSrvException e) {
+                server.getExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            } catch (IOException | RuntimeException e) {
+                server.getExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                keepOpen = false;
+            } finally {
+                context.setCommandInput(null);
+            }
+            final boolean resume = keepOpen;
+            server.runOnSelector(() -> {
+                if (resume) {
+                    resume();
+                } else {
+                    close();
+                }
+            });
+        });
+    }
+
+    private void resume() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        header.clear();
+        payload = null;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        context.close();
+        server.sessionClosed();
+    }
+}
@@ -1,12 +1,17 @@
 package com.jhonju.ps3netsrv.server;
 
 import com.jhonju.ps3netsrv.server.enums.EListType;
+import com.jhonju.ps3netsrv.server.enums.EServerEngine;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PS3NetSrvTask implements Runnable {
     private final Thread.UncaughtExceptionHandler exceptionHandler;
@@ -16,21 +21,31 @@ public class PS3NetSrvTask implements Runnable {
     private final boolean readOnly;
     private final EListType listType;
     private final Set<String> filterAddresses;
+    private final EServerEngine engine;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ExecutorService sessionExecutor;
     private boolean isRunning = true;
 
     public PS3NetSrvTask(int port, String folderPath, int maxConnections, boolean readOnly, Set<String> filterAddresses,
-            EListType listType, Thread.UncaughtExceptionHandler exceptionHandler) {
+            EListType listType, EServerEngine engine, Thread.UncaughtExceptionHandler exceptionHandler) {
         this.port = port;
         this.folderPath = folderPath;
         this.maxConnections = maxConnections;
         this.readOnly = readOnly;
         this.filterAddresses = filterAddresses;
         this.listType = listType;
+        this.engine = engine;
 
         this.exceptionHandler = exceptionHandler;
     }
 
+    public PS3NetSrvTask(int port, String folderPath, int maxConnections, boolean readOnly, Set<String> filterAddresses,
+            EListType listType, Thread.UncaughtExceptionHandler exceptionHandler) {
+        this(port, folderPath, maxConnections, readOnly, filterAddresses, listType, EServerEngine.ENGINE_CLASSIC,
+                exceptionHandler);
+    }
+
     public PS3NetSrvTask(int port, String folderPath, Thread.UncaughtExceptionHandler exceptionHandler) {
         this.port = port;
         this.folderPath = folderPath;
@@ -38,13 +53,26 @@ public class PS3NetSrvTask implements Runnable {
         this.readOnly = false;
         this.filterAddresses = null;
         this.listType = EListType.LIST_TYPE_NONE;
+        this.engine = EServerEngine.ENGINE_CLASSIC;
 
         this.exceptionHandler = exceptionHandler;
     }
 
     public void run() {
+        if (engine == EServerEngine.ENGINE_NIO) {
+            nioServer = new NioServer(port, folderPath, maxConnections, readOnly, this::allowIncomingConnection,
+                    exceptionHandler);
+            nioServer.run();
+            return;
+        }
+        if (engine == EServerEngine.ENGINE_VIRTUAL) {
+            // Virtual threads park on socket reads instead of holding a platform thread per idle console
+            sessionExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ps3netsrv-session-", 0)
+                    .uncaughtExceptionHandler(exceptionHandler).factory());
+        }
         try {
-            serverSocket = new ServerSocket(port);
+            // Channel-backed sockets let read commands use FileChannel.transferTo on the connection
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
             while (isRunning) {
                 Socket clientSocket = serverSocket.accept();
                 String hostAddress = clientSocket.getInetAddress().getHostAddress();
@@ -58,8 +86,15 @@ public class PS3NetSrvTask implements Runnable {
                     }
                     continue;
                 }
-                new ContextHandler(new Context(clientSocket, folderPath, readOnly), maxConnections, exceptionHandler)
-                        .start();
+                ContextHandler handler = new ContextHandler(new Context(clientSocket, folderPath, readOnly),
+                        maxConnections, exceptionHandler);
+                if (sessionExecutor != null) {
+                    sessionExecutor.execute(handler);
+                } else {
+                    Thread thread = new Thread(handler);
+                    thread.setUncaughtExceptionHandler(exceptionHandler);
+                    thread.start();
+                }
             }
         } catch (IOException e) {
             exceptionHandler.uncaughtException(Thread.currentThread(), e);
@@ -84,6 +119,12 @@ public class PS3NetSrvTask implements Runnable {
 
     public void shutdown() {
         isRunning = false;
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
+        if (sessionExecutor != null) {
+            sessionExecutor.shutdown();
+        }
         try {
             if (serverSocket != null)
                 serverSocket.close();
@@ -1,11 +1,19 @@
 package com.jhonju.ps3netsrv.server.commands;
 
+import com.jhonju.ps3netsrv.server.ChannelWriter;
 import com.jhonju.ps3netsrv.server.Context;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
+import com.jhonju.ps3netsrv.server.io.FileCustom;
+import com.jhonju.ps3netsrv.server.io.IFile;
+import com.jhonju.ps3netsrv.server.io.ReadAheadFile;
+import com.jhonju.ps3netsrv.server.io.VirtualIsoFile;
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
 import com.jhonju.ps3netsrv.server.utils.Utils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public abstract class AbstractCommand implements ICommand {
     protected Context ctx;
@@ -13,8 +21,9 @@ public abstract class AbstractCommand implements ICommand {
     protected byte[] ERROR_CODE_BYTEARRAY = Utils.intToBytesBE(ERROR_CODE);
     protected byte[] SUCCESS_CODE_BYTEARRAY = Utils.intToBytesBE(0);
     protected static final int EMPTY_SIZE = 0;
-    protected static final int BUFFER_SIZE = 4 * 1048576; //4MB
-    protected static final int BYTES_TO_SKIP = 24;
+    public static final int BUFFER_SIZE = BufferPool.LARGE_BUFFER_SIZE; //4MB
+    // Offset of the user data in a raw CD sector
+    public static final int BYTES_TO_SKIP = 24;
     protected static final short MILLISECONDS_IN_SECOND = 1000;
 
     public AbstractCommand(Context ctx) {
@@ -44,4 +53,88 @@ public abstract class AbstractCommand implements ICommand {
         os.flush();
     }
 
+    /**
+     * Sends the buffers' remaining bytes in order, e.g. a length header followed
+     * by a pooled data buffer.
+     */
+    protected void send(ByteBuffer... buffers) throws IOException {
+        ChannelWriter writer = ctx.getChannelWriter();
+        if (writer != null) {
+            writer.write(buffers);
+            return;
+        }
+        OutputStream os = ctx.getOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            os.write(bytes);
+        }
+        os.flush();
+    }
+
+    /**
+     * Returns the file under a session-level decorator such as read-ahead.
+     */
+    protected static IFile unwrap(IFile file) {
+        return file instanceof ReadAheadFile ? ((ReadAheadFile) file).getDelegate() : file;
+    }
+
+    /**
+     * Returns the channel to send the file's content from without copying, or
+     * null when the connection or the file (encrypted, virtual) does not allow it.
+     */
+    protected FileChannel getZeroCopyChannel(IFile file) throws IOException {
+        file = unwrap(file);
+        if (ctx.getChannelWriter() == null || !(file instanceof FileCustom))
+            return null;
+        return ((FileCustom) file).getZeroCopyChannel();
+    }
+
+    /**
+     * Returns the generated metadata of a virtual ISO covering the whole range,
+     * to be sent from the shared buffer without copying, or null.
+     */
+    protected ByteBuffer getMetadataSlice(IFile file, long position, int length) throws IOException {
+        file = unwrap(file);
+        if (!(file instanceof VirtualIsoFile))
+            return null;
+        return ((VirtualIsoFile) file).getMetadataSlice(position, length);
+    }
+
+    /**
+     * Returns the cooked copy of a raw CD image to send 2048-byte sectors
+     * from without copying, or null when there is none (yet).
+     */
+    protected FileChannel getCookedChannel(IFile file, int sectorSize) throws IOException {
+        file = unwrap(file);
+        if (ctx.getChannelWriter() == null || !(file instanceof FileCustom))
+            return null;
+        return ((FileCustom) file).getCookedChannel(sectorSize);
+    }
+
+    /**
+     * Attaches the cooked copy of a raw CD image, or starts building it, when
+     * this session can send it without copying.
+     */
+    protected void prepareCookedCopy(IFile file, int sectorSize) throws IOException {
+        file = unwrap(file);
+        if (ctx.getChannelWriter() != null && file instanceof FileCustom) {
+            ((FileCustom) file).prepareCookedCopy(sectorSize);
+        }
+    }
+
+    /**
+     * Sends the optional header followed by {@code count} bytes transferred
+     * directly from the file channel to the socket.
+     */
+    protected void send(byte[] header, FileChannel source, long position, long count) throws IOException {
+        ChannelWriter writer = ctx.getChannelWriter();
+        if (header != null) {
+            writer.write(ByteBuffer.wrap(header));
+        }
+        if (count > 0) {
+            writer.transferFrom(source, position, count);
+        }
+    }
+
 }
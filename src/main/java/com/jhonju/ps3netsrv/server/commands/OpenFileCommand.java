@@ -4,7 +4,11 @@ import static com.jhonju.ps3netsrv.server.utils.Utils.longToBytesBE;
 
 import com.jhonju.ps3netsrv.server.Context;
 import com.jhonju.ps3netsrv.server.enums.CDSectorSize;
+import com.jhonju.ps3netsrv.server.io.FileCustom;
+import com.jhonju.ps3netsrv.server.io.FileIdentity;
+import com.jhonju.ps3netsrv.server.io.FileMetadataCache;
 import com.jhonju.ps3netsrv.server.io.IFile;
+import com.jhonju.ps3netsrv.server.io.ReadAheadFile;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
 
 import java.io.ByteArrayOutputStream;
@@ -19,6 +23,7 @@ public class OpenFileCommand extends FileCommand {
     private static final long CD_MAXIMUM_SIZE = 0x35000000L;
     private static final String PLAYSTATION_IDENTIFIER = "PLAYSTATION ";
     private static final String CD001_IDENTIFIER = "CD001";
+    private static final int DESCRIPTOR_PROBE_LENGTH = 20;
 
     public OpenFileCommand(Context ctx, short filePathLength) {
         super(ctx, filePathLength);
@@ -53,6 +58,7 @@ public class OpenFileCommand extends FileCommand {
             send(new OpenFileResult());
             throw new PS3NetSrvException("Error: on OpenFileCommand - file not exists");
         }
+        file = ReadAheadFile.wrap(file);
         ctx.setFile(file);
 
         try {
@@ -65,23 +71,66 @@ public class OpenFileCommand extends FileCommand {
         send(new OpenFileResult(file.length(), file.lastModified() / MILLISECONDS_IN_SECOND));
     }
 
-    private void determineCdSectorSize(com.jhonju.ps3netsrv.server.io.IFile file) throws IOException {
+    /**
+     * Sets the session's CD sector size when the file looks like a raw CD
+     * image. The result is remembered per {@link FileIdentity}, so reopening
+     * the same image costs no disk read.
+     */
+    private void determineCdSectorSize(IFile file) throws IOException {
         long fileLength = file.length();
         if (fileLength < CD_MINIMUM_SIZE || fileLength > CD_MAXIMUM_SIZE) {
             ctx.setCdSectorSize(null);
             return;
         }
+        IFile unwrapped = unwrap(file);
+        FileIdentity identity = unwrapped instanceof FileCustom ? ((FileCustom) unwrapped).getIdentity() : null;
+        Integer known = identity != null ? FileMetadataCache.getCdSectorSize(identity) : null;
+        CDSectorSize cdSec;
+        if (known != null) {
+            cdSec = CDSectorSize.valueOf(known);
+        } else {
+            cdSec = detectCdSectorSize(file);
+            if (identity != null) {
+                FileMetadataCache.putCdSectorSize(identity,
+                        cdSec != null ? cdSec.cdSectorSize : FileMetadataCache.NOT_A_CD_IMAGE);
+            }
+        }
+        if (cdSec != null) {
+            ctx.setCdSectorSize(cdSec);
+            // Attaches the cooked copy, or starts building it in the background
+            prepareCookedCopy(file, cdSec.cdSectorSize);
+        }
+    }
+
+    /**
+     * Looks for the volume descriptor of sector 16 for every candidate sector
+     * size. All candidate positions lie within a few KB, so they are checked
+     * in one read.
+     */
+    private static CDSectorSize detectCdSectorSize(IFile file) throws IOException {
+        long first = Long.MAX_VALUE;
+        long last = 0;
         for (CDSectorSize cdSec : CDSectorSize.values()) {
-            long position = (cdSec.cdSectorSize << 4) + BYTES_TO_SKIP;
-            byte[] buffer = new byte[20];
-            int readCount = file.read(buffer, 0, buffer.length, position);
-            if (readCount > 0) {
-                String strBuffer = new String(buffer, 0, readCount, StandardCharsets.US_ASCII);
+            long position = descriptorPosition(cdSec);
+            first = Math.min(first, position);
+            last = Math.max(last, position + DESCRIPTOR_PROBE_LENGTH);
+        }
+        byte[] buffer = new byte[(int) (last - first)];
+        int readCount = file.read(buffer, 0, buffer.length, first);
+        for (CDSectorSize cdSec : CDSectorSize.values()) {
+            int offset = (int) (descriptorPosition(cdSec) - first);
+            int length = Math.min(DESCRIPTOR_PROBE_LENGTH, readCount - offset);
+            if (length > 0) {
+                String strBuffer = new String(buffer, offset, length, StandardCharsets.US_ASCII);
                 if (strBuffer.contains(PLAYSTATION_IDENTIFIER) || strBuffer.contains(CD001_IDENTIFIER)) {
-                    ctx.setCdSectorSize(cdSec);
-                    break;
+                    return cdSec;
                 }
             }
         }
+        return null;
+    }
+
+    private static long descriptorPosition(CDSectorSize cdSec) {
+        return ((long) cdSec.cdSectorSize << 4) + BYTES_TO_SKIP;
     }
 }
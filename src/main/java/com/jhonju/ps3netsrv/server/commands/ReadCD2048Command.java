@@ -3,15 +3,17 @@ package com.jhonju.ps3netsrv.server.commands;
 import com.jhonju.ps3netsrv.server.Context;
 import com.jhonju.ps3netsrv.server.io.IFile;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ReadCD2048Command extends AbstractCommand {
 
     private static final short MAX_RESULT_SIZE = 2048;
     private static final int MAX_SECTORS = BUFFER_SIZE / MAX_RESULT_SIZE;
+    private static final int RAW_BUFFER_SIZE = BufferPool.LARGE_BUFFER_SIZE;
 
     private final int startSector;
     private final int sectorCount;
@@ -31,22 +33,70 @@ public class ReadCD2048Command extends AbstractCommand {
         if (file == null) {
             throw new IllegalArgumentException("File shouldn't be null");
         }
-        send(readSectors(file, startSector * ctx.getCdSectorSize().cdSectorSize, sectorCount));
+        int sectorSize = ctx.getCdSectorSize().cdSectorSize;
+        FileChannel cooked = getCookedChannel(file, sectorSize);
+        long cookedStart = (long) startSector * MAX_RESULT_SIZE;
+        long cookedCount = (long) sectorCount * MAX_RESULT_SIZE;
+        if (cooked != null && cookedCount > 0 && cookedStart + cookedCount <= cooked.size()) {
+            send(null, cooked, cookedStart, cookedCount);
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire(sectorCount * MAX_RESULT_SIZE);
+        try {
+            readSectors(file, buffer, (long) startSector * sectorSize, sectorCount);
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                throw new PS3NetSrvException("Empty byte array to send to response");
+            }
+            send(buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
     }
 
-    private byte[] readSectors(IFile file, long offset, int count) throws IOException {
+    /**
+     * Reads the raw sectors in as few positional reads as possible: each batch
+     * of consecutive sectors is read in one go into a pooled buffer and the
+     * 2048-byte payloads are then packed into the result, dropping the raw
+     * headers and trailers in memory instead of with one read per sector.
+     */
+    private void readSectors(IFile file, ByteBuffer buffer, long offset, int count) throws IOException {
         final int SECTOR_SIZE = ctx.getCdSectorSize().cdSectorSize;
+        final int sectorsPerBatch = RAW_BUFFER_SIZE / SECTOR_SIZE;
+        if (count <= 0) {
+            return;
+        }
 
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream(count * MAX_RESULT_SIZE)) {
-            for (int i = 0; i < count; i++) {
-                byte[] sectorRead = new byte[MAX_RESULT_SIZE];
-                int bytesLength = file.read(sectorRead, 0, MAX_RESULT_SIZE, offset + BYTES_TO_SKIP);
-                if (bytesLength > 0) {
-                    out.write(sectorRead, 0, bytesLength);
+        // Small reads take a small pooled buffer; only long ones need the whole batch size
+        ByteBuffer raw = BufferPool.acquire((int) Math.min(RAW_BUFFER_SIZE,
+                (long) (count - 1) * SECTOR_SIZE + MAX_RESULT_SIZE));
+        try {
+            for (int done = 0; done < count; ) {
+                int batch = Math.min(sectorsPerBatch, count - done);
+                // From the first payload to the end of the last one
+                raw.clear().limit((batch - 1) * SECTOR_SIZE + MAX_RESULT_SIZE);
+                long position = offset + (long) done * SECTOR_SIZE + BYTES_TO_SKIP;
+                while (raw.hasRemaining()) {
+                    if (file.read(raw, position + raw.position()) <= 0)
+                        break;
+                }
+                int available = raw.position();
+                for (int i = 0; i < batch; i++) {
+                    int payloadStart = i * SECTOR_SIZE;
+                    if (payloadStart >= available) {
+                        return;
+                    }
+                    int length = Math.min(MAX_RESULT_SIZE, available - payloadStart);
+                    buffer.put(buffer.position(), raw, payloadStart, length);
+                    buffer.position(buffer.position() + length);
+                    if (length < MAX_RESULT_SIZE) {
+                        return;
+                    }
                 }
-                offset += SECTOR_SIZE;
+                done += batch;
             }
-            return out.toByteArray();
+        } finally {
+            BufferPool.release(raw);
         }
     }
 }
@@ -1,16 +1,24 @@
 package com.jhonju.ps3netsrv.server.commands;
 
-import static com.jhonju.ps3netsrv.server.utils.Utils.INT_CAPACITY;
-
 import com.jhonju.ps3netsrv.server.Context;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
 import com.jhonju.ps3netsrv.server.io.IFile;
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
 import com.jhonju.ps3netsrv.server.utils.Utils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class ReadFileCommand extends AbstractCommand {
+    // Reads larger than this are split so the next chunk is read while one is sent
+    private static final int PIPELINE_CHUNK_SIZE = BufferPool.MEDIUM_BUFFER_SIZE; //512KB
+
     protected int numBytes;
     protected long offset;
 
@@ -20,44 +28,142 @@ public class ReadFileCommand extends AbstractCommand {
         this.offset = offset;
     }
 
-    private static class ReadFileResult implements IResult {
-        private final int bytesReadLength;
-        private final byte[] bytesRead;
-
-        public ReadFileResult(int bytesReadLength, byte[] bytesRead) {
-            this.bytesReadLength = bytesReadLength;
-            this.bytesRead = bytesRead;
-        }
-
-        @Override
-        public byte[] toByteArray() throws IOException {
-            try (ByteArrayOutputStream out = new ByteArrayOutputStream(INT_CAPACITY + bytesReadLength)) {
-                out.write(Utils.intToBytesBE(bytesReadLength));
-                out.write(bytesRead);
-                return out.toByteArray();
-            }
-        }
-    }
-
     @Override
     public void executeTask() throws IOException, PS3NetSrvException {
-        byte[] readFileResult = new byte[numBytes];
         IFile file = ctx.getFile();
         if (file == null) {
             send(ERROR_CODE_BYTEARRAY);
             throw new PS3NetSrvException("Error reading file: no file opened.");
         }
+        FileChannel channel;
+        long count = 0;
         try {
-            int bytesRead = file.read(readFileResult, 0, numBytes, offset);
-            if (bytesRead < 0) {
-                // Return 0 bytes read for EOF instead of throwing, or as per ps3netsrv protocol
-                send(new ReadFileResult(0, new byte[0]));
-                return;
+            channel = getZeroCopyChannel(file);
+            if (channel != null) {
+                count = Math.max(0, Math.min(numBytes, channel.size() - offset));
             }
-            send(new ReadFileResult(bytesRead, readFileResult));
         } catch (IOException e) {
             send(ERROR_CODE_BYTEARRAY);
             throw new PS3NetSrvException("Error reading file.");
         }
+        if (channel != null) {
+            send(Utils.intToBytesBE((int) count), channel, offset, count);
+            return;
+        }
+        count = Math.max(0, Math.min(numBytes, file.length() - offset));
+        ByteBuffer metadata = getMetadataSlice(file, offset, (int) count);
+        if (metadata != null && count > 0) {
+            send(ByteBuffer.wrap(Utils.intToBytesBE((int) count)), metadata);
+            return;
+        }
+        if (count > PIPELINE_CHUNK_SIZE) {
+            sendPipelined(file, (int) count);
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire(numBytes);
+        try {
+            int bytesRead;
+            try {
+                bytesRead = file.read(buffer, offset);
+            } catch (IOException e) {
+                send(ERROR_CODE_BYTEARRAY);
+                throw new PS3NetSrvException("Error reading file.");
+            }
+            // Return 0 bytes read for EOF instead of throwing, or as per ps3netsrv protocol
+            buffer.flip();
+            send(ByteBuffer.wrap(Utils.intToBytesBE(Math.max(bytesRead, 0))), buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes in chunks with two pooled buffers: the
+     * asynchronous read of the next chunk is in flight while the current one is
+     * written to the socket. The first chunk is read before anything is sent,
+     * so a failing or short read is still answered like a single read; once
+     * the length header is out, a later short read can only drop the
+     * connection.
+     */
+    private void sendPipelined(IFile file, int count) throws IOException, PS3NetSrvException {
+        ByteBuffer current = BufferPool.acquire(PIPELINE_CHUNK_SIZE);
+        ByteBuffer next = BufferPool.acquire(PIPELINE_CHUNK_SIZE);
+        CompletableFuture<Integer> pending = null;
+        try {
+            int chunk = Math.min(PIPELINE_CHUNK_SIZE, count);
+            current.clear().limit(chunk);
+            int bytesRead;
+            try {
+                bytesRead = awaitRead(file.readAsync(current, offset));
+            } catch (IOException e) {
+                send(ERROR_CODE_BYTEARRAY);
+                throw new PS3NetSrvException("Error reading file.");
+            }
+            if (bytesRead < chunk) {
+                current.flip();
+                send(ByteBuffer.wrap(Utils.intToBytesBE(Math.max(bytesRead, 0))), current);
+                return;
+            }
+
+            ByteBuffer header = ByteBuffer.wrap(Utils.intToBytesBE(count));
+            long position = offset;
+            int remaining = count;
+            while (true) {
+                remaining -= chunk;
+                int nextChunk = Math.min(PIPELINE_CHUNK_SIZE, remaining);
+                if (nextChunk > 0) {
+                    next.clear().limit(nextChunk);
+                    pending = file.readAsync(next, position + chunk);
+                }
+                current.flip();
+                if (header != null) {
+                    send(header, current);
+                    header = null;
+                } else {
+                    send(current);
+                }
+                if (pending == null) {
+                    return;
+                }
+                CompletableFuture<Integer> read = pending;
+                pending = null;
+                if (awaitRead(read) < nextChunk) {
+                    throw new EOFException("File ended before the announced length was sent");
+                }
+                position += chunk;
+                chunk = nextChunk;
+                ByteBuffer sent = current;
+                current = next;
+                next = sent;
+            }
+        } finally {
+            if (pending != null) {
+                // The buffer may only go back to the pool once the read stopped writing to it
+                try {
+                    pending.join();
+                } catch (RuntimeException ignored) {
+                }
+            }
+            BufferPool.release(current);
+            BufferPool.release(next);
+        }
+    }
+
+    private static int awaitRead(CompletableFuture<Integer> read) throws IOException {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error reading file", cause);
+        }
     }
 }
@@ -3,7 +3,12 @@ package com.jhonju.ps3netsrv.server.commands;
 import com.jhonju.ps3netsrv.server.Context;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
 import com.jhonju.ps3netsrv.server.io.IFile;
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
+import com.jhonju.ps3netsrv.server.utils.Utils;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ReadFileCriticalCommand extends ReadFileCommand {
 
@@ -13,18 +18,30 @@ public class ReadFileCriticalCommand extends ReadFileCommand {
 
     @Override
     public void executeTask() throws IOException, PS3NetSrvException {
-        byte[] result = new byte[numBytes];
         IFile file = ctx.getFile();
         if (file == null) {
             throw new PS3NetSrvException("Error reading file: no file opened.");
         }
+        FileChannel channel = getZeroCopyChannel(file);
+        // Reads ending past EOF are zero padded, so only fully available ranges go zero-copy
+        if (channel != null && offset + numBytes <= channel.size()) {
+            send(null, channel, offset, numBytes);
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire(numBytes);
         try {
-            if (file.read(result, 0, numBytes, offset) < 0) {
-                throw new PS3NetSrvException("Error reading file. EOF");
+            try {
+                if (file.read(buffer, offset) < 0) {
+                    throw new PS3NetSrvException("Error reading file. EOF");
+                }
+            } catch (IOException e) {
+                throw new PS3NetSrvException("Error reading file.");
             }
-        } catch (IOException e) {
-            throw new PS3NetSrvException("Error reading file.");
+            Utils.putZeros(buffer, buffer.remaining());
+            buffer.flip();
+            send(buffer);
+        } finally {
+            BufferPool.release(buffer);
         }
-        send(result);
     }
 }
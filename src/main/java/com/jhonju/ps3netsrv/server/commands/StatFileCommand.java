@@ -3,10 +3,12 @@ package com.jhonju.ps3netsrv.server.commands;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import com.jhonju.ps3netsrv.server.Context;
 import com.jhonju.ps3netsrv.server.exceptions.PS3NetSrvException;
 import com.jhonju.ps3netsrv.server.io.FileCustom;
+import com.jhonju.ps3netsrv.server.io.FileStats;
 import com.jhonju.ps3netsrv.server.io.IFile;
 import com.jhonju.ps3netsrv.server.utils.Utils;
 
@@ -72,9 +74,12 @@ public class StatFileCommand extends FileCommand {
                 if (file instanceof FileCustom) {
                     File realFile = ((FileCustom) file).getRealFile();
                     if (realFile != null) {
-                        long[] fileStats = Utils.getFileStats(realFile);
-                        creationTime = fileStats[0];
-                        lastAccessTime = fileStats[1];
+                        try {
+                            BasicFileAttributes attributes = FileStats.getProvider().readAttributes(realFile);
+                            creationTime = attributes.creationTime().toMillis();
+                            lastAccessTime = attributes.lastAccessTime().toMillis();
+                        } catch (IOException ignored) {
+                        }
                     }
                 }
 
@@ -0,0 +1,7 @@
+package com.jhonju.ps3netsrv.server.enums;
+
+public enum EServerEngine {
+    ENGINE_CLASSIC,
+    ENGINE_NIO,
+    ENGINE_VIRTUAL
+}
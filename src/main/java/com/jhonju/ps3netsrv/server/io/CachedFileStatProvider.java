@@ -0,0 +1,54 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the attributes returned by another provider for a short time. A game
+ * boot stats the same few files many times in a row; the TTL is short enough
+ * that changes made on the server side show up almost immediately.
+ */
+public class CachedFileStatProvider implements IFileStatProvider {
+    public static final long DEFAULT_TTL_MILLIS = 2000;
+    private static final int MAX_ENTRIES = 4096;
+
+    private final IFileStatProvider delegate;
+    private final long ttlNanos;
+    private final Map<String, CachedAttributes> cache = new ConcurrentHashMap<>();
+
+    private static class CachedAttributes {
+        final BasicFileAttributes attributes;
+        final long expiresAt;
+
+        CachedAttributes(BasicFileAttributes attributes, long expiresAt) {
+            this.attributes = attributes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CachedFileStatProvider(IFileStatProvider delegate, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    @Override
+    public BasicFileAttributes readAttributes(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long now = System.nanoTime();
+        CachedAttributes cached = cache.get(key);
+        if (cached != null && now - cached.expiresAt < 0) {
+            return cached.attributes;
+        }
+        BasicFileAttributes attributes = delegate.readAttributes(file);
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.values().removeIf(entry -> now - entry.expiresAt >= 0);
+            if (cache.size() >= MAX_ENTRIES)
+                cache.clear();
+        }
+        cache.put(key, new CachedAttributes(attributes, now + ttlNanos));
+        return attributes;
+    }
+}
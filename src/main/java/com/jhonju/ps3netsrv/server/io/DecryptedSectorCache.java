@@ -0,0 +1,195 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import static com.jhonju.ps3netsrv.server.utils.Utils.SECTOR_SIZE;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Off-heap cache of decrypted 2048-byte sectors of encrypted ISOs, shared by
+ * all sessions, so hot sectors (EBOOT, PARAM.SFO, boot data) are read and
+ * decrypted once. Entries are keyed by a per-{@link FileIdentity} id and the
+ * LBA, and evicted with the CLOCK algorithm. The cache is split in stripes,
+ * each with its own lock and its own direct arena, allocated on first use.
+ */
+public final class DecryptedSectorCache {
+
+    public static final int DEFAULT_SIZE_MB = 64;
+    private static final int STRIPE_COUNT = 16;
+    private static final int SECTORS_PER_MB = 1048576 / SECTOR_SIZE;
+
+    private static final Map<FileIdentity, Integer> fileIds = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextFileId = new AtomicInteger();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static volatile Stripe[] stripes = createStripes(DEFAULT_SIZE_MB);
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<Long, Integer> slots = new HashMap<>();
+        final long[] keys;
+        final boolean[] referenced;
+        ByteBuffer arena;
+        int used;
+        int hand;
+
+        Stripe(int slotCount) {
+            keys = new long[slotCount];
+            referenced = new boolean[slotCount];
+        }
+
+        /**
+         * Picks the slot for a new entry: a free one while the stripe fills up,
+         * then the first slot the clock hand finds without its reference bit.
+         */
+        int allocateSlot() {
+            if (arena == null) {
+                arena = ByteBuffer.allocateDirect(keys.length * SECTOR_SIZE);
+            }
+            if (used < keys.length) {
+                return used++;
+            }
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % keys.length;
+            }
+            int slot = hand;
+            hand = (hand + 1) % keys.length;
+            slots.remove(keys[slot]);
+            evictions.increment();
+            return slot;
+        }
+    }
+
+    private DecryptedSectorCache() {
+        // Utility class, no instantiation
+    }
+
+    private static Stripe[] createStripes(int sizeMB) {
+        int slotsPerStripe = (int) Math.min((long) sizeMB * SECTORS_PER_MB / STRIPE_COUNT,
+                Integer.MAX_VALUE / SECTOR_SIZE);
+        if (slotsPerStripe <= 0) {
+            return null;
+        }
+        Stripe[] created = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            created[i] = new Stripe(slotsPerStripe);
+        }
+        return created;
+    }
+
+    /**
+     * Sets the cache size in megabytes; 0 disables the cache. Cached sectors
+     * are dropped.
+     */
+    public static void setSizeMB(int sizeMB) {
+        stripes = createStripes(Math.max(0, sizeMB));
+    }
+
+    public static boolean isEnabled() {
+        return stripes != null;
+    }
+
+    /**
+     * Returns the id used in cache keys for the given file. Ids are stable for
+     * as long as a handle for the file stays open, and never reused.
+     */
+    static int fileId(FileIdentity identity) {
+        return fileIds.computeIfAbsent(identity, id -> nextFileId.getAndIncrement());
+    }
+
+    /**
+     * Drops the id of a file whose last handle was closed. Its sectors stay
+     * cached under the old id until the clock hand reclaims them; a later
+     * open gets a fresh id and reads them again.
+     */
+    static void forgetFile(FileIdentity identity) {
+        fileIds.remove(identity);
+    }
+
+    static long key(int fileId, long lba) {
+        return ((long) fileId << 32) | (lba & 0xFFFFFFFFL);
+    }
+
+    private static Stripe stripeFor(Stripe[] current, long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return current[(int) ((hash >>> 32) % current.length)];
+    }
+
+    /**
+     * Copies {@code length} bytes of the cached sector, starting at
+     * {@code sectorOffset}, to the absolute index {@code index} of the buffer.
+     * Returns false when the sector is not cached.
+     */
+    static boolean get(long key, int sectorOffset, ByteBuffer dst, int index, int length) {
+        Stripe[] current = stripes;
+        if (current == null) {
+            return false;
+        }
+        Stripe stripe = stripeFor(current, key);
+        stripe.lock.lock();
+        try {
+            Integer slot = stripe.slots.get(key);
+            if (slot == null) {
+                misses.increment();
+                return false;
+            }
+            stripe.referenced[slot] = true;
+            dst.put(index, stripe.arena, slot * SECTOR_SIZE + sectorOffset, length);
+            hits.increment();
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the decrypted sector found at the absolute index {@code index} of
+     * the buffer.
+     */
+    static void put(long key, ByteBuffer src, int index) {
+        Stripe[] current = stripes;
+        if (current == null) {
+            return;
+        }
+        Stripe stripe = stripeFor(current, key);
+        stripe.lock.lock();
+        try {
+            if (stripe.slots.containsKey(key)) {
+                return;
+            }
+            int slot = stripe.allocateSlot();
+            stripe.arena.put(slot * SECTOR_SIZE, src, index, SECTOR_SIZE);
+            stripe.keys[slot] = key;
+            stripe.referenced[slot] = false;
+            stripe.slots.put(key, slot);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static String getStatistics() {
+        long hitCount = getHits();
+        long lookups = hitCount + getMisses();
+        return String.format("Sector cache: %d hits, %d misses (%.1f%% hit ratio), %d evictions", hitCount,
+                getMisses(), lookups == 0 ? 0.0 : hitCount * 100.0 / lookups, getEvictions());
+    }
+}
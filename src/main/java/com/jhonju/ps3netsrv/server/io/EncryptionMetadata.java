@@ -0,0 +1,33 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import com.jhonju.ps3netsrv.server.enums.EEncryptionType;
+
+/**
+ * Result of the encryption detection of an ISO: its type, AES key and region
+ * table. Plain files have type NONE, no key and no regions.
+ */
+public final class EncryptionMetadata {
+    public static final EncryptionMetadata NONE = new EncryptionMetadata(EEncryptionType.NONE, null, null);
+
+    private final EEncryptionType encryptionType;
+    private final byte[] encryptionKey;
+    private final PS3RegionInfo[] regionInfos;
+
+    public EncryptionMetadata(EEncryptionType encryptionType, byte[] encryptionKey, PS3RegionInfo[] regionInfos) {
+        this.encryptionType = encryptionKey != null ? encryptionType : EEncryptionType.NONE;
+        this.encryptionKey = encryptionKey;
+        this.regionInfos = regionInfos != null ? regionInfos : new PS3RegionInfo[0];
+    }
+
+    public EEncryptionType getEncryptionType() {
+        return encryptionType;
+    }
+
+    public byte[] getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public PS3RegionInfo[] getRegionInfos() {
+        return regionInfos;
+    }
+}
@@ -0,0 +1,243 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import static com.jhonju.ps3netsrv.server.utils.Utils.REDKEY_FOLDER_NAME;
+
+import com.jhonju.ps3netsrv.server.enums.EEncryptionType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent cache of {@link EncryptionMetadata} for the ISOs in PS3ISO
+ * folders, keyed by {@link FileIdentity}, so opening a known ISO needs no
+ * sector reads or key derivation. The cache lives in a small binary index
+ * file, loaded at startup and rewritten in the background whenever new ISOs
+ * were detected. It is kept in the cache directory when one is set, otherwise
+ * in the served root, and only in memory when that root is read-only; either
+ * way it is never served to consoles.
+ * <p>
+ * Every entry also records the modification times of the ISO's folder and of
+ * the REDKEY folder, and a Redump entry the path and modification time of its
+ * .dkey file: adding, removing or rewriting a key forces a new detection.
+ */
+public final class EncryptionMetadataCache {
+
+    public static final String INDEX_FILE_NAME = ".ps3netsrv-encryption.idx";
+    static final String INDEX_EXTENSION = ".idx";
+    private static final int MAGIC = 0x50334D44; //"P3MD"
+    private static final int VERSION = 2;
+
+    private static final Map<FileIdentity, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private static final ExecutorService saver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ps3netsrv-metadata");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile File indexFile;
+
+    private static class Entry {
+        final EncryptionMetadata metadata;
+        final long folderModified;
+        final long keyFolderModified;
+        // The .dkey file the key was read from; empty for other types
+        final String keyPath;
+        final long keyModified;
+
+        Entry(EncryptionMetadata metadata, long folderModified, long keyFolderModified, String keyPath,
+                long keyModified) {
+            this.metadata = metadata;
+            this.folderModified = folderModified;
+            this.keyFolderModified = keyFolderModified;
+            this.keyPath = keyPath;
+            this.keyModified = keyModified;
+        }
+    }
+
+    private EncryptionMetadataCache() {
+        // Utility class, no instantiation
+    }
+
+    /**
+     * Loads the index of the given root, dropping entries whose ISO was
+     * removed or changed. A missing or unreadable index starts an empty cache.
+     * With a cache directory the index is kept there, named after the root;
+     * without one it is kept in the root unless the root is read-only.
+     */
+    public static void load(File root, File cacheDirectory, boolean readOnly) {
+        File file;
+        if (cacheDirectory != null) {
+            file = new File(cacheDirectory, FileIdentity.digest(canonicalPath(root)) + INDEX_EXTENSION);
+        } else {
+            file = new File(root, INDEX_FILE_NAME);
+        }
+        indexFile = cacheDirectory != null || !readOnly ? file : null;
+        entries.clear();
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("Ignoring encryption index with unknown format: " + file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FileIdentity identity = new FileIdentity(in.readUTF(), in.readLong(), in.readLong());
+                Entry entry = readEntry(in);
+                File iso = new File(identity.getCanonicalPath());
+                if (iso.length() == identity.getSize() && iso.lastModified() == identity.getLastModified()) {
+                    entries.put(identity, entry);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read encryption index " + file + ": " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private static String canonicalPath(File root) {
+        try {
+            return root.getCanonicalPath();
+        } catch (IOException e) {
+            return root.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Returns true for the index file and its temporary copy, which must not
+     * be listed, opened or stat'ed by consoles.
+     */
+    public static boolean isIndexFile(String name) {
+        return name.startsWith(INDEX_FILE_NAME);
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        EEncryptionType type = EEncryptionType.values()[in.readUnsignedByte()];
+        long folderModified = in.readLong();
+        long keyFolderModified = in.readLong();
+        String keyPath = in.readUTF();
+        long keyModified = in.readLong();
+        byte[] key = null;
+        int keyLength = in.readUnsignedShort();
+        if (keyLength > 0) {
+            key = new byte[keyLength];
+            in.readFully(key);
+        }
+        PS3RegionInfo[] regionInfos = new PS3RegionInfo[in.readInt()];
+        for (int i = 0; i < regionInfos.length; i++) {
+            regionInfos[i] = new PS3RegionInfo(in.readBoolean(), in.readLong(), in.readLong());
+        }
+        return new Entry(new EncryptionMetadata(type, key, regionInfos), folderModified, keyFolderModified,
+                keyPath, keyModified);
+    }
+
+    /**
+     * Returns the cached metadata of the ISO, or null when it must be detected.
+     */
+    static EncryptionMetadata get(FileIdentity identity, File iso) {
+        Entry entry = entries.get(identity);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.folderModified != folderModified(iso) || entry.keyFolderModified != keyFolderModified(iso)) {
+            return null;
+        }
+        if (!entry.keyPath.isEmpty() && new File(entry.keyPath).lastModified() != entry.keyModified) {
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    static void put(FileIdentity identity, File iso, EncryptionMetadata metadata) {
+        String keyPath = "";
+        long keyModified = 0L;
+        if (metadata.getEncryptionType() == EEncryptionType.REDUMP) {
+            File keyFile = SharedFileHandle.findRedumpKeyFile(iso);
+            if (keyFile != null) {
+                keyPath = keyFile.getAbsolutePath();
+                keyModified = keyFile.lastModified();
+            }
+        }
+        entries.put(identity, new Entry(metadata, folderModified(iso), keyFolderModified(iso), keyPath, keyModified));
+        if (indexFile != null && saveScheduled.compareAndSet(false, true)) {
+            saver.execute(() -> {
+                saveScheduled.set(false);
+                save();
+            });
+        }
+    }
+
+    private static long folderModified(File iso) {
+        File parent = iso.getParentFile();
+        return parent != null ? parent.lastModified() : 0L;
+    }
+
+    private static long keyFolderModified(File iso) {
+        File parent = iso.getParentFile();
+        if (parent == null || parent.getParentFile() == null) {
+            return 0L;
+        }
+        return new File(parent.getParentFile(), REDKEY_FOLDER_NAME).lastModified();
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it over the old one, so
+     * a crash never leaves a truncated index behind.
+     */
+    private static void save() {
+        File file = indexFile;
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                Map<FileIdentity, Entry> snapshot = new HashMap<>(entries);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<FileIdentity, Entry> item : snapshot.entrySet()) {
+                    FileIdentity identity = item.getKey();
+                    Entry entry = item.getValue();
+                    out.writeUTF(identity.getCanonicalPath());
+                    out.writeLong(identity.getSize());
+                    out.writeLong(identity.getLastModified());
+                    out.writeByte(entry.metadata.getEncryptionType().ordinal());
+                    out.writeLong(entry.folderModified);
+                    out.writeLong(entry.keyFolderModified);
+                    out.writeUTF(entry.keyPath);
+                    out.writeLong(entry.keyModified);
+                    byte[] key = entry.metadata.getEncryptionKey();
+                    out.writeShort(key != null ? key.length : 0);
+                    if (key != null)
+                        out.write(key);
+                    PS3RegionInfo[] regionInfos = entry.metadata.getRegionInfos();
+                    out.writeInt(regionInfos.length);
+                    for (PS3RegionInfo regionInfo : regionInfos) {
+                        out.writeBoolean(regionInfo.isEncrypted());
+                        out.writeLong(regionInfo.getFirstAddress());
+                        out.writeLong(regionInfo.getLastAddress());
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write encryption index " + file + ": " + e.getMessage());
+            temp.delete();
+        }
+    }
+}
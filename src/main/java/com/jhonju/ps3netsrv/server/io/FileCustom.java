@@ -1,156 +1,199 @@
 package com.jhonju.ps3netsrv.server.io;
 
-import static com.jhonju.ps3netsrv.server.utils.Utils.DKEY_EXT;
-import static com.jhonju.ps3netsrv.server.utils.Utils.DOT_STR;
-import static com.jhonju.ps3netsrv.server.utils.Utils.ISO_EXTENSION;
-import static com.jhonju.ps3netsrv.server.utils.Utils.PS3ISO_FOLDER_NAME;
-import static com.jhonju.ps3netsrv.server.utils.Utils.REDKEY_FOLDER_NAME;
-import static com.jhonju.ps3netsrv.server.utils.Utils.SECTOR_SIZE;
-
-import com.jhonju.ps3netsrv.server.enums.EEncryptionType;
-import com.jhonju.ps3netsrv.server.utils.Utils;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import javax.crypto.spec.SecretKeySpec;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File on the served folder. Metadata comes from an attribute snapshot taken
+ * on first use (or by the listing that created the instance) and refreshed
+ * once it is older than {@link #SNAPSHOT_TTL_MILLIS}, and the file is only
+ * opened when it is first read, so a directory listing costs one stat per
+ * entry and no open, while a file held open for a long time still sees its
+ * current size.
+ */
 public class FileCustom implements IFile {
 
-    private final File file;
-    private final SecretKeySpec decryptionKey;
-    private final EEncryptionType encryptionType;
-    private final RandomAccessFile randomAccessFile;
+    private static final long SNAPSHOT_TTL_MILLIS = CachedFileStatProvider.DEFAULT_TTL_MILLIS;
 
-    private final PS3RegionInfo[] regionInfos;
-    private final byte[] iv = new byte[16];
+    private final File file;
+    private volatile Snapshot snapshot;
+    private final ReentrantLock handleLock = new ReentrantLock();
+    private volatile SharedFileHandle handle;
 
     public File getRealFile() {
         return file;
     }
 
-    public FileCustom(File file) throws IOException {
+    /**
+     * Returns the channel of the opened file when its bytes can be sent to the
+     * client exactly as stored, or null when reads need decryption.
+     */
+    public FileChannel getZeroCopyChannel() throws IOException {
+        return openHandle().getZeroCopyChannel();
+    }
+
+    /**
+     * Attributes read at one point in time; null attributes mean the file did
+     * not exist. Published as a whole, so readers never see half of it.
+     */
+    private static final class Snapshot {
+        final BasicFileAttributes attributes;
+        final long takenAt;
+
+        Snapshot(BasicFileAttributes attributes) {
+            this.attributes = attributes;
+            this.takenAt = System.nanoTime();
+        }
+    }
+
+    public FileCustom(File file) {
         this.file = file;
-        byte[] encryptionKey = null;
-        EEncryptionType detectedEncryptionType = EEncryptionType.NONE;
-        RandomAccessFile randomAccessFile = null;
-        PS3RegionInfo[] regionInfos = null;
-        byte[] sec0sec1 = null;
-
-        if (file != null && file.isFile()) {
-            randomAccessFile = new RandomAccessFile(file, "r");
-
-            boolean isInPS3ISOFolder = file.getParentFile() != null
-                    && file.getParentFile().getName().equalsIgnoreCase(PS3ISO_FOLDER_NAME);
-
-            // For PS3ISO files, read sec0sec1 early to check for watermarks and region info
-            int sec0Sec1Length = SECTOR_SIZE * 2;
-            if (isInPS3ISOFolder && file.length() >= sec0Sec1Length) {
-                sec0sec1 = new byte[sec0Sec1Length];
-                randomAccessFile.seek(0);
-                if (randomAccessFile.read(sec0sec1) != sec0Sec1Length) {
-                    sec0sec1 = null;
-                }
-            }
+    }
 
-            // First try to get Redump key from external .dkey file
-            encryptionKey = getRedumpKey(file.getParentFile(), file.getAbsolutePath(), file.getName());
-            if (encryptionKey != null) {
-                detectedEncryptionType = EEncryptionType.REDUMP;
-            } else if (sec0sec1 != null && Utils.has3K3YEncryptedWatermark(sec0sec1)) {
-                // If no Redump key, check for 3k3y watermark and extract key if found
-                encryptionKey = Utils.convertD1ToKey(sec0sec1);
-                if (encryptionKey != null) {
-                    detectedEncryptionType = EEncryptionType._3K3Y;
-                }
-            }
+    private FileCustom(File file, BasicFileAttributes attributes) {
+        this.file = file;
+        this.snapshot = new Snapshot(attributes);
+    }
 
-            // Parse region info from sec0sec1 if we have encryption
-            if (encryptionKey != null && sec0sec1 != null) {
-                regionInfos = Utils.getRegionInfos(sec0sec1);
-            }
-        }
+    /**
+     * Returns the identity of the file's current content, without opening it.
+     */
+    public FileIdentity getIdentity() throws IOException {
+        return FileIdentity.of(file);
+    }
 
-        this.randomAccessFile = randomAccessFile;
+    /**
+     * Returns the cooked copy of this raw CD image (2048 bytes of user data per
+     * sector), or null while it is not available.
+     */
+    public FileChannel getCookedChannel(int sectorSize) throws IOException {
+        return openHandle().getCookedChannel(sectorSize);
+    }
 
-        if (encryptionKey != null) {
-            this.decryptionKey = new SecretKeySpec(encryptionKey, "AES");
-            this.encryptionType = detectedEncryptionType;
-        } else {
-            this.decryptionKey = null;
-            this.encryptionType = EEncryptionType.NONE;
+    /**
+     * Attaches the cooked copy of this raw CD image, or schedules it to be
+     * built when a cache directory is configured. Called once per open.
+     */
+    public void prepareCookedCopy(int sectorSize) throws IOException {
+        SharedFileHandle handle = openHandle();
+        if (handle.getCookedChannel(sectorSize) == null) {
+            ShadowImageCache.onCdImageOpened(file, handle, sectorSize);
         }
-        this.regionInfos = regionInfos != null ? regionInfos : new PS3RegionInfo[0];
-    }
-
-    private static byte[] getRedumpKey(File parent, String path, String fileName) throws IOException {
-        byte[] decryptionKey = null;
-        if (parent != null && parent.getName().equalsIgnoreCase(PS3ISO_FOLDER_NAME)) {
-            int pos = path.lastIndexOf(DOT_STR);
-            if (pos >= 0 && path.substring(pos).equalsIgnoreCase(ISO_EXTENSION)) {
-                File decryptionKeyFile = new File(path.substring(0, pos) + DKEY_EXT);
-                if (!decryptionKeyFile.exists() || decryptionKeyFile.isDirectory()) {
-                    File redKeyFolder = new File(parent.getParentFile(), REDKEY_FOLDER_NAME);
-                    if (redKeyFolder.exists() && redKeyFolder.isDirectory()) {
-                        decryptionKeyFile = new File(redKeyFolder,
-                                fileName.substring(0, fileName.lastIndexOf(DOT_STR)) + DKEY_EXT);
-                    }
-                }
-                if (decryptionKeyFile.exists() && decryptionKeyFile.isFile()) {
-                    decryptionKey = getKeyFromFile(decryptionKeyFile);
-                }
-            }
+    }
+
+    /**
+     * Returns the attribute snapshot of the file, reading it on first use or
+     * once it expired, or null when the file does not exist.
+     */
+    private BasicFileAttributes attributes() {
+        Snapshot current = snapshot;
+        if (current == null || System.nanoTime() - current.takenAt > SNAPSHOT_TTL_MILLIS * 1000000L) {
+            current = new Snapshot(readAttributes(file.toPath()));
+            snapshot = current;
         }
-        return decryptionKey;
+        return current.attributes;
     }
 
-    private static byte[] getKeyFromFile(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            return EncryptionKeyHelper.parseKeyFromStream(fis);
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops the attribute snapshot after the file was changed through this
+     * instance, or opened, or when a caller needs the current state, so the
+     * next query reads it again.
+     */
+    void invalidateAttributes() {
+        snapshot = null;
+    }
+
+    /**
+     * The file is only opened (through the shared {@link FileHandleCache}) when
+     * it is first read, so listing and stat-ing never hold a descriptor.
+     */
+    private SharedFileHandle openHandle() throws IOException {
+        SharedFileHandle current = handle;
+        if (current != null) {
+            return current;
+        }
+        handleLock.lock();
+        try {
+            if (handle == null) {
+                if (file == null || !isFile())
+                    throw new IOException("File is not opened for reading");
+                handle = FileHandleCache.acquire(file);
+                // The listing's snapshot may be older than the content just opened
+                invalidateAttributes();
+            }
+            return handle;
+        } finally {
+            handleLock.unlock();
         }
     }
 
     @Override
     public boolean exists() {
-        return this.file.exists();
+        return attributes() != null;
     }
 
     @Override
     public boolean isFile() {
-        return this.file.isFile();
+        BasicFileAttributes attrs = attributes();
+        return attrs != null && attrs.isRegularFile();
     }
 
     @Override
     public boolean isDirectory() {
-        return file.isDirectory();
+        BasicFileAttributes attrs = attributes();
+        return attrs != null && attrs.isDirectory();
     }
 
     @Override
     public boolean delete() {
+        invalidateAttributes();
         return file.delete();
     }
 
     @Override
     public long length() {
-        return file.length();
+        BasicFileAttributes attrs = attributes();
+        return attrs != null && !attrs.isDirectory() ? attrs.size() : 0L;
     }
 
     @Override
     public IFile[] listFiles() throws IOException {
-        File[] filesAux = file.listFiles();
-        if (filesAux == null)
+        if (!isDirectory())
             return null;
-        IFile[] files = new IFile[filesAux.length];
-        for (int i = 0; i < filesAux.length; i++) {
-            files[i] = new FileCustom(filesAux[i]);
+        List<IFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.toPath())) {
+            for (Path child : stream) {
+                // The encryption index is server metadata, not content for the console
+                if (EncryptionMetadataCache.isIndexFile(child.getFileName().toString()))
+                    continue;
+                files.add(new FileCustom(child.toFile(), readAttributes(child)));
+            }
         }
-        return files;
+        return files.toArray(new IFile[0]);
     }
 
     @Override
     public long lastModified() {
-        return file.lastModified();
+        BasicFileAttributes attrs = attributes();
+        return attrs != null ? attrs.lastModifiedTime().toMillis() : 0L;
     }
 
     @Override
@@ -160,7 +203,7 @@ public class FileCustom implements IFile {
 
     @Override
     public String[] list() {
-        return file.list();
+        return file.list((dir, name) -> !EncryptionMetadataCache.isIndexFile(name));
     }
 
     @Override
@@ -175,30 +218,33 @@ public class FileCustom implements IFile {
 
     @Override
     public int read(byte[] buffer, int offset, int length, long position) throws IOException {
-        if (randomAccessFile == null)
-            throw new IOException("File is not opened for reading");
-        randomAccessFile.seek(position);
-        int bytesRead = randomAccessFile.read(buffer, offset, length);
-        if (bytesRead <= 0 || encryptionType == EEncryptionType.NONE) {
-            return bytesRead;
-        }
+        return read(ByteBuffer.wrap(buffer, offset, length), position);
+    }
 
-        for (PS3RegionInfo regionInfo : regionInfos) {
-            if ((position >= regionInfo.getFirstAddress()) && (position <= regionInfo.getLastAddress())) {
-                if (!regionInfo.isEncrypted()) {
-                    return bytesRead;
-                }
-                Utils.decryptData(decryptionKey, iv, buffer, offset, bytesRead / SECTOR_SIZE, position / SECTOR_SIZE);
-                return bytesRead;
-            }
+    @Override
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        return openHandle().read(buffer, position);
+    }
+
+    @Override
+    public CompletableFuture<Integer> readAsync(ByteBuffer buffer, long position) {
+        try {
+            return openHandle().readAsync(buffer, position);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        return bytesRead;
     }
 
     @Override
     public void close() throws IOException {
-        if (randomAccessFile != null) {
-            randomAccessFile.close();
+        handleLock.lock();
+        try {
+            if (handle != null) {
+                FileHandleCache.release(handle);
+                handle = null;
+            }
+        } finally {
+            handleLock.unlock();
         }
     }
 
@@ -206,16 +252,20 @@ public class FileCustom implements IFile {
     public void write(byte[] buffer) throws IOException {
         try (java.io.FileOutputStream fos = new java.io.FileOutputStream(file)) {
             fos.write(buffer);
+        } finally {
+            invalidateAttributes();
         }
     }
 
     @Override
     public boolean createDirectory(String name) {
+        invalidateAttributes();
         return new File(file, name).mkdir();
     }
 
     @Override
     public boolean createFile(String name) {
+        invalidateAttributes();
         try {
             return new File(file, name).createNewFile();
         } catch (IOException e) {
@@ -225,6 +275,7 @@ public class FileCustom implements IFile {
 
     @Override
     public boolean mkdir() {
+        invalidateAttributes();
         return file.mkdir();
     }
 }
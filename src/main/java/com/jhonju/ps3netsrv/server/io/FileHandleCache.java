@@ -0,0 +1,106 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reference counted cache of open file handles shared by all sessions, so
+ * consoles playing the same ISO reuse one descriptor and one encryption
+ * detection. Idle handles are closed in LRU order once more than
+ * {@link #setMaxOpenFiles(int) maxOpenFiles} are open; handles in use are
+ * never closed, so the budget can be exceeded while every handle is busy.
+ * The budget counts primary handles only: a handle using a decrypted or
+ * cooked copy from the cache directory holds one more descriptor for it.
+ */
+public final class FileHandleCache {
+
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Map<FileIdentity, SharedFileHandle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private static int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+
+    private FileHandleCache() {
+        // Utility class, no instantiation
+    }
+
+    public static void setMaxOpenFiles(int maxOpenFiles) {
+        lock.lock();
+        try {
+            FileHandleCache.maxOpenFiles = Math.max(0, maxOpenFiles);
+            evictIdleHandles();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static SharedFileHandle acquire(File file) throws IOException {
+        FileIdentity identity = FileIdentity.of(file);
+        SharedFileHandle handle = retain(identity);
+        if (handle != null) {
+            return handle;
+        }
+
+        // Opening and encryption detection happen outside the lock; a racing opener's handle is discarded
+        SharedFileHandle opened = SharedFileHandle.open(file, identity);
+        lock.lock();
+        try {
+            handle = handles.get(identity);
+            if (handle == null) {
+                handle = opened;
+                opened = null;
+                handles.put(identity, handle);
+            }
+            handle.refCount++;
+            evictIdleHandles();
+        } finally {
+            lock.unlock();
+        }
+        if (opened != null) {
+            opened.close();
+        } else {
+            ShadowImageCache.onOpened(file, handle);
+        }
+        return handle;
+    }
+
+    private static SharedFileHandle retain(FileIdentity identity) {
+        lock.lock();
+        try {
+            SharedFileHandle handle = handles.get(identity);
+            if (handle != null) {
+                handle.refCount++;
+            }
+            return handle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void release(SharedFileHandle handle) {
+        lock.lock();
+        try {
+            handle.refCount--;
+            evictIdleHandles();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void evictIdleHandles() {
+        Iterator<Map.Entry<FileIdentity, SharedFileHandle>> it = handles.entrySet().iterator();
+        while (handles.size() > maxOpenFiles && it.hasNext()) {
+            Map.Entry<FileIdentity, SharedFileHandle> entry = it.next();
+            SharedFileHandle handle = entry.getValue();
+            if (handle.refCount <= 0) {
+                it.remove();
+                handle.close();
+                DecryptedSectorCache.forgetFile(entry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies the content of a file on disk: the same canonical path with the
+ * same size and modification time is assumed to hold the same bytes, so
+ * anything derived from it can be shared between sessions.
+ */
+public final class FileIdentity {
+    private final String canonicalPath;
+    private final long size;
+    private final long lastModified;
+
+    public FileIdentity(String canonicalPath, long size, long lastModified) {
+        this.canonicalPath = canonicalPath;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public static FileIdentity of(File file) throws IOException {
+        return new FileIdentity(file.getCanonicalPath(), file.length(), file.lastModified());
+    }
+
+    public String getCanonicalPath() {
+        return canonicalPath;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns a short hex digest of the identity, stable across restarts, for
+     * naming files derived from this content in a cache directory.
+     */
+    public String getDigest() {
+        return digest(canonicalPath + '|' + size + '|' + lastModified);
+    }
+
+    /**
+     * Returns the first 8 bytes of the SHA-256 of the text, in hex.
+     */
+    static String digest(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof FileIdentity))
+            return false;
+        FileIdentity other = (FileIdentity) o;
+        return size == other.size && lastModified == other.lastModified && canonicalPath.equals(other.canonicalPath);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = canonicalPath.hashCode();
+        result = 31 * result + Long.hashCode(size);
+        result = 31 * result + Long.hashCode(lastModified);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return canonicalPath + " (" + size + " bytes, modified " + lastModified + ")";
+    }
+}
@@ -0,0 +1,58 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Small facts probed from a file's content, shared by all sessions. Entries
+ * are keyed by {@link FileIdentity}, so a modified file is probed again, and
+ * the least recently used ones are dropped once {@code MAX_ENTRIES} files are
+ * known.
+ */
+public final class FileMetadataCache {
+
+    public static final int NOT_A_CD_IMAGE = 0;
+    private static final int UNKNOWN = -1;
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Map<FileIdentity, Entry> entries = new LinkedHashMap<FileIdentity, Entry>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FileIdentity, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static class Entry {
+        int cdSectorSize = UNKNOWN;
+    }
+
+    private FileMetadataCache() {
+        // Utility class, no instantiation
+    }
+
+    /**
+     * Returns the detected CD sector size, {@link #NOT_A_CD_IMAGE}, or null
+     * when the file was not probed yet.
+     */
+    public static Integer getCdSectorSize(FileIdentity identity) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(identity);
+            return entry == null || entry.cdSectorSize == UNKNOWN ? null : entry.cdSectorSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void putCdSectorSize(FileIdentity identity, int cdSectorSize) {
+        lock.lock();
+        try {
+            entries.computeIfAbsent(identity, key -> new Entry()).cdSectorSize = cdSectorSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
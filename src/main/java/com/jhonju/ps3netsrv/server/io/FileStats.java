@@ -0,0 +1,23 @@
+package com.jhonju.ps3netsrv.server.io;
+
+/**
+ * Holds the {@link IFileStatProvider} used by STAT_FILE. Defaults to in-process
+ * NIO attributes behind a short-lived cache.
+ */
+public final class FileStats {
+
+    private static volatile IFileStatProvider provider = new CachedFileStatProvider(new NioFileStatProvider(),
+            CachedFileStatProvider.DEFAULT_TTL_MILLIS);
+
+    private FileStats() {
+        // Utility class, no instantiation
+    }
+
+    public static IFileStatProvider getProvider() {
+        return provider;
+    }
+
+    public static void setProvider(IFileStatProvider provider) {
+        FileStats.provider = provider;
+    }
+}
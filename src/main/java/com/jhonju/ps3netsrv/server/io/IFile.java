@@ -1,6 +1,8 @@
 package com.jhonju.ps3netsrv.server.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 public interface IFile {
     boolean exists();
@@ -27,6 +29,26 @@ public interface IFile {
 
     int read(byte[] buffer, int offset, int length, long position) throws IOException;
 
+    /**
+     * Reads up to {@code buffer.remaining()} bytes starting at {@code position},
+     * advancing the buffer's position. Returns the bytes read, or -1 at EOF.
+     */
+    int read(ByteBuffer buffer, long position) throws IOException;
+
+    /**
+     * Starts the same read as {@link #read(ByteBuffer, long)} and completes
+     * with its result, so the caller can do other work, e.g. send the previous
+     * chunk, while the disk is busy. The buffer must not be touched until the
+     * read completes. By default the read runs on the calling thread.
+     */
+    default CompletableFuture<Integer> readAsync(ByteBuffer buffer, long position) {
+        try {
+            return CompletableFuture.completedFuture(read(buffer, position));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     void close() throws IOException;
 
     void write(byte[] buffer) throws IOException;
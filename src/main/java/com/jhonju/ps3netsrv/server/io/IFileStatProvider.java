@@ -0,0 +1,13 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Source of the file attributes reported by STAT_FILE (size, modification,
+ * creation and last access times).
+ */
+public interface IFileStatProvider {
+    BasicFileAttributes readAttributes(File file) throws IOException;
+}
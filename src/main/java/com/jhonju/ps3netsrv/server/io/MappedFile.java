@@ -0,0 +1,112 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only memory mapping of a file, split in 1GB segments since a single
+ * MappedByteBuffer cannot exceed 2GB and ISOs often do. Segments are mapped on
+ * first use and reads copy straight from the page cache, without a read
+ * syscall per request.
+ * <p>
+ * Mapping is enabled per root folder (e.g. the roots on a fast local SSD)
+ * through {@link #setMappedRoots(List)}. Java offers no madvise, so access
+ * hints are left to the kernel's fault-around and read-ahead. Java cannot
+ * unmap explicitly either: closing the handle drops the segments, and the
+ * garbage collector unmaps them once no read still uses them. A mapped file
+ * must not be truncated while served.
+ */
+public final class MappedFile {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT; //1GB
+
+    private static volatile List<String> mappedRoots = new ArrayList<>();
+
+    private final FileChannel channel;
+    private final long size;
+    // Published through the array's volatile semantics, so lock-free readers see fully built buffers
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+    private final ReentrantLock mapLock = new ReentrantLock();
+
+    MappedFile(FileChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+        this.segments = new AtomicReferenceArray<>((int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT));
+    }
+
+    /**
+     * Sets the folders whose files are read through memory mappings.
+     */
+    public static void setMappedRoots(List<File> roots) throws IOException {
+        List<String> canonicalRoots = new ArrayList<>();
+        for (File root : roots) {
+            String path = root.getCanonicalPath();
+            canonicalRoots.add(path.endsWith(File.separator) ? path : path + File.separator);
+        }
+        mappedRoots = canonicalRoots;
+    }
+
+    static boolean isMapped(FileIdentity identity) {
+        for (String root : mappedRoots) {
+            if (identity.getCanonicalPath().startsWith(root))
+                return true;
+        }
+        return false;
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer segment = segments.get(index);
+        if (segment != null) {
+            return segment;
+        }
+        mapLock.lock();
+        try {
+            segment = segments.get(index);
+            if (segment == null) {
+                long start = (long) index << SEGMENT_SHIFT;
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                segments.set(index, segment);
+            }
+            return segment;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * Copies up to {@code buffer.remaining()} bytes starting at
+     * {@code position}, crossing segment boundaries as needed. Returns the
+     * bytes copied, 0 at or past the end of the file.
+     */
+    int read(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        long current = position;
+        while (buffer.hasRemaining() && current < size) {
+            int index = (int) (current >>> SEGMENT_SHIFT);
+            int offset = (int) (current & (SEGMENT_SIZE - 1));
+            MappedByteBuffer segment = segment(index);
+            int length = Math.min(buffer.remaining(), segment.capacity() - offset);
+            buffer.put(buffer.position(), segment, offset, length);
+            buffer.position(buffer.position() + length);
+            current += length;
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Drops the segments so they can be unmapped; called when the handle
+     * closes, after which the closed channel cannot map them again.
+     */
+    void close() {
+        for (int i = 0; i < segments.length(); i++) {
+            segments.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Reads attributes in process through java.nio.file, a single stat call on
+ * POSIX systems. File systems that do not track creation time report the
+ * modification time instead.
+ */
+public class NioFileStatProvider implements IFileStatProvider {
+
+    @Override
+    public BasicFileAttributes readAttributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+}
@@ -37,7 +37,11 @@ public class ParamSfoParser {
                 return null;
             }
 
-            return parseTitleId(paramSfo);
+            try {
+                return parseTitleId(paramSfo);
+            } finally {
+                paramSfo.close();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,337 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead decorator for a file opened by one session. Once a few reads in a
+ * row continue exactly where the previous one ended, the next chunks (of the
+ * same size as the last read) are read into pooled buffers in the background
+ * while the current response is being sent, and the following READ_FILE is
+ * served from memory.
+ * <p>
+ * The window starts at one chunk and doubles whenever the client had to wait
+ * for a prefetch, i.e. it consumes faster than the disk (or decryption) keeps
+ * up, and shrinks again after a long run of prefetches that were ready early.
+ * Any non-sequential read drops the pending chunks and resets the window.
+ * <p>
+ * Reads come from a single session, one command at a time, so the detector
+ * state needs no locking; only the prefetch tasks run concurrently.
+ * <p>
+ * Each session keeps at most {@link #MAX_BYTES_AHEAD} in flight, and all
+ * sessions together at most {@link #MAX_TOTAL_BYTES_AHEAD}; once the shared
+ * budget is spent, sessions read directly until prefetched chunks are consumed
+ * or dropped.
+ */
+public class ReadAheadFile implements IFile {
+    private static final int SEQUENTIAL_READS_TO_START = 2;
+    private static final int MAX_WINDOW = 8;
+    private static final long MAX_BYTES_AHEAD = 16 * 1048576; //16MB
+    private static final long MAX_TOTAL_BYTES_AHEAD = 128 * 1048576; //128MB
+    private static final int READY_HITS_TO_SHRINK = 16;
+
+    private static final AtomicInteger prefetcherCount = new AtomicInteger();
+    private static final AtomicLong totalBytesAhead = new AtomicLong();
+    private static final ExecutorService prefetchers = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "ps3netsrv-readahead-" + prefetcherCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final IFile delegate;
+    private final Deque<Prefetch> prefetches = new ArrayDeque<>();
+    private final List<CompletableFuture<Integer>> discarded = new ArrayList<>();
+    private long expectedPosition = -1;
+    private int sequentialReads;
+    private int window = 1;
+    private int readyHits;
+
+    private static class Prefetch {
+        final long position;
+        final int length;
+        final ByteBuffer buffer;
+        final CompletableFuture<Integer> result;
+
+        Prefetch(long position, int length, ByteBuffer buffer, CompletableFuture<Integer> result) {
+            this.position = position;
+            this.length = length;
+            this.buffer = buffer;
+            this.result = result;
+        }
+    }
+
+    public ReadAheadFile(IFile delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps files whose reads are copied through memory (encrypted or virtual
+     * ISOs). Files that can be sent zero-copy are returned as they are; the
+     * kernel's own read-ahead already serves them.
+     */
+    public static IFile wrap(IFile file) {
+        if (file instanceof FileCustom) {
+            try {
+                if (!file.isFile() || ((FileCustom) file).getZeroCopyChannel() != null)
+                    return file;
+            } catch (IOException e) {
+                return file;
+            }
+        }
+        return new ReadAheadFile(file);
+    }
+
+    public IFile getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        int result;
+        Prefetch head = prefetches.peekFirst();
+        if (head != null && head.position == position) {
+            prefetches.pollFirst();
+            result = consume(head, buffer);
+            if (result == head.length && buffer.hasRemaining()) {
+                // The client asked for more than was prefetched; read the rest directly
+                int more = delegate.read(buffer, position + result);
+                result += Math.max(0, more);
+            } else if (result == -2) {
+                result = delegate.read(buffer, position);
+            }
+        } else {
+            discardPrefetches();
+            result = delegate.read(buffer, position);
+        }
+        track(position, length);
+        return result;
+    }
+
+    /**
+     * Reads that hit a prefetch are served from memory; any other read drops
+     * the prefetches and goes to the file asynchronously.
+     */
+    @Override
+    public CompletableFuture<Integer> readAsync(ByteBuffer buffer, long position) {
+        Prefetch head = prefetches.peekFirst();
+        if (head != null && head.position == position) {
+            return IFile.super.readAsync(buffer, position);
+        }
+        int length = buffer.remaining();
+        discardPrefetches();
+        CompletableFuture<Integer> result = delegate.readAsync(buffer, position);
+        track(position, length);
+        return result;
+    }
+
+    /**
+     * Copies a completed prefetch into the buffer and gives its buffer back.
+     * Returns the bytes copied, -1 at EOF, or -2 when the prefetch failed and
+     * the read must be retried directly (reporting the real error).
+     */
+    private int consume(Prefetch prefetch, ByteBuffer buffer) throws IOException {
+        boolean ready = prefetch.result.isDone();
+        try {
+            int bytesRead = prefetch.result.get();
+            if (ready) {
+                if (++readyHits >= READY_HITS_TO_SHRINK && window > 1) {
+                    window--;
+                    readyHits = 0;
+                }
+            } else {
+                window = Math.min(window * 2, MAX_WINDOW);
+                readyHits = 0;
+            }
+            if (bytesRead <= 0) {
+                return -1;
+            }
+            ByteBuffer data = prefetch.buffer;
+            data.flip();
+            data.limit(Math.min(data.limit(), buffer.remaining()));
+            int copied = data.remaining();
+            buffer.put(data);
+            return copied;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        } catch (ExecutionException e) {
+            return -2;
+        } finally {
+            release(prefetch);
+        }
+    }
+
+    /**
+     * Gives a prefetch's buffer back to the pool and its bytes back to the
+     * shared budget.
+     */
+    private static void release(Prefetch prefetch) {
+        BufferPool.release(prefetch.buffer);
+        totalBytesAhead.addAndGet(-prefetch.length);
+    }
+
+    private void track(long position, int length) {
+        if (position == expectedPosition) {
+            sequentialReads++;
+        } else {
+            sequentialReads = 0;
+            window = 1;
+            readyHits = 0;
+        }
+        expectedPosition = position + length;
+        if (sequentialReads >= SEQUENTIAL_READS_TO_START && length > 0) {
+            schedule(length);
+        }
+    }
+
+    private void schedule(int chunkLength) {
+        Prefetch last = prefetches.peekLast();
+        long next = last != null ? last.position + last.length : expectedPosition;
+        long fileLength = delegate.length();
+        while (prefetches.size() < window && (long) (prefetches.size() + 1) * chunkLength <= MAX_BYTES_AHEAD
+                && next < fileLength) {
+            if (totalBytesAhead.addAndGet(chunkLength) > MAX_TOTAL_BYTES_AHEAD) {
+                totalBytesAhead.addAndGet(-chunkLength);
+                break;
+            }
+            final long position = next;
+            final ByteBuffer buffer = BufferPool.acquire(chunkLength);
+            CompletableFuture<Integer> result = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return delegate.read(buffer, position);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, prefetchers);
+            prefetches.addLast(new Prefetch(position, chunkLength, buffer, result));
+            next += chunkLength;
+        }
+    }
+
+    /**
+     * Drops the pending chunks. Their buffers go back to the pool only once
+     * the tasks finish, since a running task may still be writing to them.
+     */
+    private void discardPrefetches() {
+        discarded.removeIf(CompletableFuture::isDone);
+        Prefetch prefetch;
+        while ((prefetch = prefetches.pollFirst()) != null) {
+            final Prefetch dropped = prefetch;
+            prefetch.result.whenComplete((bytesRead, error) -> release(dropped));
+            discarded.add(prefetch.result);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, long position) throws IOException {
+        return read(buffer, 0, buffer.length, position);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, long position) throws IOException {
+        return read(ByteBuffer.wrap(buffer, offset, length), position);
+    }
+
+    /**
+     * Waits for the running prefetches before closing the file, so no task
+     * reads from it after it was closed.
+     */
+    @Override
+    public void close() throws IOException {
+        discardPrefetches();
+        for (CompletableFuture<Integer> result : discarded) {
+            try {
+                result.join();
+            } catch (RuntimeException ignored) {
+            }
+        }
+        discarded.clear();
+        delegate.close();
+    }
+
+    @Override
+    public boolean exists() {
+        return delegate.exists();
+    }
+
+    @Override
+    public boolean isFile() {
+        return delegate.isFile();
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return delegate.isDirectory();
+    }
+
+    @Override
+    public boolean delete() {
+        return delegate.delete();
+    }
+
+    @Override
+    public long length() {
+        return delegate.length();
+    }
+
+    @Override
+    public IFile[] listFiles() throws IOException {
+        return delegate.listFiles();
+    }
+
+    @Override
+    public long lastModified() {
+        return delegate.lastModified();
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public String[] list() {
+        return delegate.list();
+    }
+
+    @Override
+    public IFile findFile(String fileName) throws IOException {
+        return delegate.findFile(fileName);
+    }
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        delegate.write(buffer);
+    }
+
+    @Override
+    public boolean createDirectory(String name) {
+        return delegate.createDirectory(name);
+    }
+
+    @Override
+    public boolean createFile(String name) {
+        return delegate.createFile(name);
+    }
+
+    @Override
+    public boolean mkdir() {
+        return delegate.mkdir();
+    }
+}
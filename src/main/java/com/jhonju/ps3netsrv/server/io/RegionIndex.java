@@ -0,0 +1,52 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.util.Arrays;
+
+/**
+ * Sorted interval index over the regions of an encrypted PS3 ISO. Regions are
+ * contiguous and ordered by address, so the region holding a position is found
+ * by binary search over their first addresses.
+ */
+public final class RegionIndex {
+    private final long[] firstAddresses;
+    private final long[] lastAddresses;
+    private final boolean[] encrypted;
+
+    public RegionIndex(PS3RegionInfo[] regionInfos) {
+        PS3RegionInfo[] sorted = regionInfos.clone();
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.getFirstAddress(), b.getFirstAddress()));
+        firstAddresses = new long[sorted.length];
+        lastAddresses = new long[sorted.length];
+        encrypted = new boolean[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            firstAddresses[i] = sorted[i].getFirstAddress();
+            lastAddresses[i] = sorted[i].getLastAddress();
+            encrypted[i] = sorted[i].isEncrypted();
+        }
+    }
+
+    public int size() {
+        return firstAddresses.length;
+    }
+
+    /**
+     * Returns the index of the last region starting at or before
+     * {@code position}, or -1 when the position precedes every region.
+     */
+    public int find(long position) {
+        int index = Arrays.binarySearch(firstAddresses, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public long getFirstAddress(int index) {
+        return firstAddresses[index];
+    }
+
+    public long getLastAddress(int index) {
+        return lastAddresses[index];
+    }
+
+    public boolean isEncrypted(int index) {
+        return encrypted[index];
+    }
+}
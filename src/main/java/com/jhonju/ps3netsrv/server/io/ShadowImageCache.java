@@ -0,0 +1,534 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import static com.jhonju.ps3netsrv.server.commands.AbstractCommand.BYTES_TO_SKIP;
+import static com.jhonju.ps3netsrv.server.utils.Utils.SECTOR_SIZE;
+
+import com.jhonju.ps3netsrv.server.enums.EEncryptionType;
+import com.jhonju.ps3netsrv.server.utils.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Optional cache of decrypted copies ("shadows") of encrypted ISOs. The first
+ * time an encrypted ISO is opened, a background job writes its plaintext to the
+ * cache directory, verifies it and moves it into place; from then on the
+ * shared handle reads the shadow instead, which needs no decryption and can be
+ * sent zero-copy. Shadows are named after the source's {@link FileIdentity}, so
+ * a modified ISO never uses a stale copy, and the least recently used ones are
+ * deleted to stay within the quota. Only files named the way this cache names
+ * them are ever counted or deleted, and the directory may not lie inside the
+ * served folder, where consoles would list its contents. A copy that fails or does not fit is not
+ * tried again until the server restarts.
+ * <p>
+ * Raw CD images (PS1/PS2, 2352-byte sectors and the like) get a cooked copy
+ * the same way, holding only the 2048-byte user data of every sector, so
+ * READ_CD_2048 requests become one zero-copy range of it.
+ */
+public final class ShadowImageCache {
+
+    public static final long DEFAULT_QUOTA_MB = 65536;
+    private static final String SHADOW_EXTENSION = ".decrypted";
+    private static final String COOKED_EXTENSION = ".cd2048";
+    private static final String TEMP_EXTENSION = ".tmp";
+    // A FileIdentity digest followed by the suffix of a file the cache writes
+    private static final String CACHED_NAME = "[0-9a-f]{16}(" + Pattern.quote(SHADOW_EXTENSION) + "|-[0-9]+"
+            + Pattern.quote(COOKED_EXTENSION) + "|" + Pattern.quote(VirtualIsoLayoutCache.LAYOUT_EXTENSION) + "|"
+            + Pattern.quote(EncryptionMetadataCache.INDEX_EXTENSION) + ")";
+    private static final Pattern CACHED_FILE = Pattern.compile(CACHED_NAME);
+    private static final Pattern TEMP_FILE = Pattern.compile(CACHED_NAME + Pattern.quote(TEMP_EXTENSION));
+    private static final int COPY_CHUNK_SIZE = BufferPool.LARGE_BUFFER_SIZE;
+    private static final int VERIFIED_SECTORS = 64;
+    // Extended attribute holding the bytes actually written to a sparse shadow
+    private static final String ALLOCATED_ATTRIBUTE = "ps3netsrv.allocated";
+
+    private static volatile File cacheDirectory;
+    private static volatile long quotaBytes;
+    private static final Set<FileIdentity> pendingJobs = ConcurrentHashMap.newKeySet();
+    private static final Set<FileIdentity> pendingCookedJobs = ConcurrentHashMap.newKeySet();
+    // Sources whose copy failed or does not fit the quota; not retried until restart
+    private static final Set<FileIdentity> failedJobs = ConcurrentHashMap.newKeySet();
+    private static final Set<FileIdentity> failedCookedJobs = ConcurrentHashMap.newKeySet();
+    // Copies currently read through an open handle, by file name, with the number of handles
+    private static final Map<String, Integer> attachedCopies = new ConcurrentHashMap<>();
+    private static final ExecutorService jobs = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ps3netsrv-shadow");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private interface Job {
+        /**
+         * Builds the copy; returns false when it was skipped for lack of room.
+         */
+        boolean run() throws IOException;
+    }
+
+    private ShadowImageCache() {
+        // Utility class, no instantiation
+    }
+
+    /**
+     * Enables the cache in the given directory, creating it if needed and
+     * deleting partial copies left by an interrupted run. The directory must
+     * not be the served folder or lie inside it.
+     */
+    public static void setCacheDirectory(File directory, File servedRoot, long quotaMB) throws IOException {
+        String cachePath = directory.getCanonicalPath() + File.separator;
+        String rootPath = servedRoot.getCanonicalPath() + File.separator;
+        if (cachePath.startsWith(rootPath)) {
+            throw new IOException("Cache directory " + directory + " must not be inside the served folder "
+                    + servedRoot);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+        File[] leftovers = directory.listFiles((dir, name) -> TEMP_FILE.matcher(name).matches());
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                Files.deleteIfExists(leftover.toPath());
+            }
+        }
+        quotaBytes = quotaMB * 1048576L;
+        cacheDirectory = directory;
+    }
+
+    public static boolean isEnabled() {
+        return cacheDirectory != null;
+    }
+
+    /**
+     * Returns the cache directory, or null when caching to disk is disabled.
+     */
+    static File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    private static File shadowFile(File directory, FileIdentity identity) {
+        return new File(directory, identity.getDigest() + SHADOW_EXTENSION);
+    }
+
+    /**
+     * Called when a handle is opened: attaches an existing shadow right away,
+     * or schedules one to be built for an encrypted ISO.
+     */
+    static void onOpened(File source, SharedFileHandle handle) {
+        File directory = cacheDirectory;
+        if (directory == null || handle.getEncryptionType() == EEncryptionType.NONE) {
+            return;
+        }
+        FileIdentity identity = handle.getIdentity();
+        File shadow = shadowFile(directory, identity);
+        if (shadow.isFile() && shadow.length() == identity.getSize()) {
+            attach(handle, shadow);
+        } else if (!failedJobs.contains(identity)) {
+            schedule(pendingJobs, failedJobs, identity, source, () -> build(source, identity, directory));
+        }
+    }
+
+    /**
+     * Called when a raw CD image is opened with the given sector size:
+     * attaches an existing cooked copy, or schedules one to be built.
+     */
+    static void onCdImageOpened(File source, SharedFileHandle handle, int sectorSize) {
+        File directory = cacheDirectory;
+        FileIdentity identity = handle.getIdentity();
+        if (directory == null || sectorSize <= SECTOR_SIZE || pendingCookedJobs.contains(identity)
+                || failedCookedJobs.contains(identity)) {
+            return;
+        }
+        File cooked = cookedFile(directory, identity, sectorSize);
+        if (cooked.isFile() && cooked.length() == cookedSize(identity, sectorSize)) {
+            attachCooked(handle, cooked, sectorSize);
+        } else {
+            schedule(pendingCookedJobs, failedCookedJobs, identity, source,
+                    () -> buildCooked(source, identity, directory, sectorSize));
+        }
+    }
+
+    private static void schedule(Set<FileIdentity> pending, Set<FileIdentity> failed, FileIdentity identity,
+            File source, Job job) {
+        if (!pending.add(identity)) {
+            return;
+        }
+        try {
+            jobs.execute(() -> {
+                try {
+                    if (!job.run()) {
+                        failed.add(identity);
+                    }
+                } catch (IOException e) {
+                    failed.add(identity);
+                    System.err.println("Could not build cached copy of " + source + ": " + e.getMessage());
+                } finally {
+                    pending.remove(identity);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(identity);
+        }
+    }
+
+    private static File cookedFile(File directory, FileIdentity identity, int sectorSize) {
+        return new File(directory, identity.getDigest() + "-" + sectorSize + COOKED_EXTENSION);
+    }
+
+    /**
+     * Size of the cooked copy: the user data of every complete raw sector.
+     */
+    private static long cookedSize(FileIdentity identity, int sectorSize) {
+        return identity.getSize() / sectorSize * SECTOR_SIZE;
+    }
+
+    private static void attach(SharedFileHandle handle, File shadow) {
+        // Registered before opening, so makeRoom never deletes a copy about to be attached
+        attachedCopies.merge(shadow.getName(), 1, Integer::sum);
+        try {
+            if (!handle.attachShadow(shadow, FileChannel.open(shadow.toPath(), StandardOpenOption.READ))) {
+                onDetached(shadow);
+                return;
+            }
+            // The modification time orders shadows for quota eviction
+            shadow.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+            onDetached(shadow);
+            System.err.println("Could not open decrypted copy " + shadow + ": " + e.getMessage());
+        }
+    }
+
+    private static void attachCooked(SharedFileHandle handle, File cooked, int sectorSize) {
+        attachedCopies.merge(cooked.getName(), 1, Integer::sum);
+        try {
+            if (!handle.attachCooked(cooked, FileChannel.open(cooked.toPath(), StandardOpenOption.READ),
+                    sectorSize)) {
+                onDetached(cooked);
+                return;
+            }
+            cooked.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+            onDetached(cooked);
+            System.err.println("Could not open cooked copy " + cooked + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called when the handle reading a copy is closed, so the copy can be
+     * deleted to make room again.
+     */
+    static void onDetached(File copy) {
+        if (copy != null) {
+            attachedCopies.computeIfPresent(copy.getName(), (name, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    private static boolean build(File source, FileIdentity identity, File directory) throws IOException {
+        if (!makeRoom(directory, identity.getSize(), shadowFile(directory, identity))) {
+            return false;
+        }
+        SharedFileHandle handle = FileHandleCache.acquire(source);
+        try {
+            if (!handle.getIdentity().equals(identity)) {
+                // The ISO changed since it was opened; its new identity gets its own job
+                return true;
+            }
+            File shadow = shadowFile(directory, identity);
+            File temp = new File(directory, shadow.getName() + TEMP_EXTENSION);
+            try {
+                long written = writeDecrypted(handle, temp, identity.getSize());
+                if (!verify(handle, temp, identity.getSize())) {
+                    throw new IOException("Verification failed");
+                }
+                recordAllocatedSize(temp, written);
+                Files.move(temp.toPath(), shadow.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+            attach(handle, shadow);
+            return true;
+        } finally {
+            FileHandleCache.release(handle);
+        }
+    }
+
+    private static boolean buildCooked(File source, FileIdentity identity, File directory, int sectorSize)
+            throws IOException {
+        long size = cookedSize(identity, sectorSize);
+        if (!makeRoom(directory, size, cookedFile(directory, identity, sectorSize))) {
+            return false;
+        }
+        SharedFileHandle handle = FileHandleCache.acquire(source);
+        try {
+            if (!handle.getIdentity().equals(identity)) {
+                return true;
+            }
+            File cooked = cookedFile(directory, identity, sectorSize);
+            File temp = new File(directory, cooked.getName() + TEMP_EXTENSION);
+            try {
+                writeCooked(handle, temp, sectorSize, size / SECTOR_SIZE);
+                if (!verifyCooked(handle, temp, sectorSize, size)) {
+                    throw new IOException("Verification failed");
+                }
+                Files.move(temp.toPath(), cooked.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+            attachCooked(handle, cooked, sectorSize);
+            return true;
+        } finally {
+            FileHandleCache.release(handle);
+        }
+    }
+
+    /**
+     * Reads the raw sectors in large batches and writes their user data back
+     * to back.
+     */
+    private static void writeCooked(SharedFileHandle handle, File temp, int sectorSize, long sectors)
+            throws IOException {
+        int sectorsPerBatch = COPY_CHUNK_SIZE / sectorSize;
+        ByteBuffer raw = BufferPool.acquire(COPY_CHUNK_SIZE);
+        ByteBuffer cooked = BufferPool.acquire(COPY_CHUNK_SIZE);
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (long sector = 0; sector < sectors; sector += sectorsPerBatch) {
+                int batch = (int) Math.min(sectorsPerBatch, sectors - sector);
+                raw.clear().limit(batch * sectorSize);
+                if (handle.readSource(raw, sector * sectorSize) < raw.limit()) {
+                    throw new IOException("Source ended early at sector " + sector);
+                }
+                cooked.clear();
+                for (int i = 0; i < batch; i++) {
+                    cooked.put(i * SECTOR_SIZE, raw, i * sectorSize + BYTES_TO_SKIP, SECTOR_SIZE);
+                }
+                cooked.limit(batch * SECTOR_SIZE);
+                while (cooked.hasRemaining()) {
+                    out.write(cooked, sector * SECTOR_SIZE + cooked.position());
+                }
+            }
+            out.force(false);
+        } finally {
+            BufferPool.release(raw);
+            BufferPool.release(cooked);
+        }
+    }
+
+    /**
+     * Compares evenly spread sectors of the cooked copy against the user data
+     * read from the raw image.
+     */
+    private static boolean verifyCooked(SharedFileHandle handle, File temp, int sectorSize, long size)
+            throws IOException {
+        long sectors = size / SECTOR_SIZE;
+        ByteBuffer expected = ByteBuffer.allocate(SECTOR_SIZE);
+        ByteBuffer actual = ByteBuffer.allocate(SECTOR_SIZE);
+        try (FileChannel in = FileChannel.open(temp.toPath(), StandardOpenOption.READ)) {
+            if (in.size() != size) {
+                return false;
+            }
+            for (int i = 0; sectors > 0 && i < VERIFIED_SECTORS; i++) {
+                long sector = (sectors - 1) * i / (VERIFIED_SECTORS - 1);
+                expected.clear();
+                actual.clear();
+                handle.readSource(expected, sector * sectorSize + BYTES_TO_SKIP);
+                SharedFileHandle.readFully(in, actual, sector * SECTOR_SIZE);
+                if (!Arrays.equals(expected.array(), actual.array())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the decrypted content chunk by chunk. All-zero chunks are skipped
+     * rather than written, so padding becomes holes in a sparse file. Returns
+     * the number of bytes written.
+     */
+    private static long writeDecrypted(SharedFileHandle handle, File temp, long size) throws IOException {
+        long written = 0;
+        ByteBuffer buffer = BufferPool.acquire(COPY_CHUNK_SIZE);
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            for (long position = 0; position < size; position += COPY_CHUNK_SIZE) {
+                buffer.clear().limit((int) Math.min(COPY_CHUNK_SIZE, size - position));
+                int bytesRead = handle.readSource(buffer, position);
+                if (bytesRead < buffer.limit()) {
+                    throw new IOException("Source ended early at " + (position + Math.max(bytesRead, 0)));
+                }
+                buffer.flip();
+                boolean lastChunk = position + buffer.limit() >= size;
+                if (!lastChunk && isZero(buffer)) {
+                    continue;
+                }
+                written += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, position + buffer.position());
+                }
+            }
+            out.force(false);
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return written;
+    }
+
+    private static boolean isZero(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares evenly spread sectors, including the first and last, of the
+     * written copy against a fresh decryption of the source. This catches
+     * short or torn writes, not a wrong key: both sides are decrypted with it,
+     * and there is no known plaintext in the encrypted regions to check
+     * against (sector 16's CD001 lies in the first, plain region).
+     */
+    private static boolean verify(SharedFileHandle handle, File temp, long size) throws IOException {
+        long sectors = size / SECTOR_SIZE;
+        if (sectors == 0) {
+            return Files.size(temp.toPath()) == size;
+        }
+        ByteBuffer expected = ByteBuffer.allocate(SECTOR_SIZE);
+        ByteBuffer actual = ByteBuffer.allocate(SECTOR_SIZE);
+        try (FileChannel in = FileChannel.open(temp.toPath(), StandardOpenOption.READ)) {
+            if (in.size() != size) {
+                return false;
+            }
+            for (int i = 0; i < VERIFIED_SECTORS; i++) {
+                long position = (sectors - 1) * i / (VERIFIED_SECTORS - 1) * SECTOR_SIZE;
+                expected.clear();
+                actual.clear();
+                handle.readSource(expected, position);
+                SharedFileHandle.readFully(in, actual, position);
+                if (!Arrays.equals(expected.array(), actual.array())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores the bytes written to a sparse shadow alongside it, where the file
+     * system supports extended attributes; it moves with the file.
+     */
+    private static void recordAllocatedSize(File file, long allocated) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+                UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        try {
+            view.write(ALLOCATED_ATTRIBUTE, ByteBuffer.allocate(Long.BYTES).putLong(0, allocated));
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+    }
+
+    /**
+     * Space a copy takes on disk: the size recorded when it was written, or
+     * its length for copies that are not sparse or have no record.
+     */
+    private static long allocatedSize(File file) {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+                UserDefinedFileAttributeView.class);
+        if (view != null) {
+            try {
+                ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+                if (view.read(ALLOCATED_ATTRIBUTE, value) == Long.BYTES) {
+                    return value.getLong(0);
+                }
+            } catch (IOException | UnsupportedOperationException ignored) {
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * Writes a file of another cache (e.g. a virtual ISO layout) to the cache
+     * directory on the background thread, once room was made for {@code size}
+     * bytes; the write is skipped when it does not fit. {@code target} is the
+     * file the writer creates or replaces.
+     */
+    static void writeInBackground(File target, long size, Runnable writer) {
+        runInBackground(() -> {
+            File directory = cacheDirectory;
+            if (directory != null && makeRoom(directory, size, target)) {
+                writer.run();
+            }
+        });
+    }
+
+    /**
+     * Runs a change to the cache directory on the background thread, after
+     * the writes queued before it.
+     */
+    static void runInBackground(Runnable task) {
+        try {
+            jobs.execute(task);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * Deletes the least recently used shadows, cooked copies and virtual ISO
+     * layouts not being read by an open handle until {@code needed} more bytes
+     * fit in the quota. The {@code replaced} file is about to be overwritten,
+     * so it is neither counted nor deleted. Returns false when the image is
+     * larger than the quota or not enough copies could be deleted.
+     * <p>
+     * Only called on the background thread, so two writers never plan with
+     * the same free space.
+     */
+    private static boolean makeRoom(File directory, long needed, File replaced) {
+        if (needed > quotaBytes) {
+            return false;
+        }
+        File[] shadows = directory.listFiles((dir, name) -> CACHED_FILE.matcher(name).matches()
+                && !name.endsWith(EncryptionMetadataCache.INDEX_EXTENSION) && !name.equals(replaced.getName()));
+        if (shadows == null) {
+            return true;
+        }
+        Arrays.sort(shadows, Comparator.comparingLong(File::lastModified));
+        long used = 0;
+        long[] sizes = new long[shadows.length];
+        for (int i = 0; i < shadows.length; i++) {
+            sizes[i] = allocatedSize(shadows[i]);
+            used += sizes[i];
+        }
+        for (int i = 0; i < shadows.length && used + needed > quotaBytes; i++) {
+            if (attachedCopies.containsKey(shadows[i].getName())) {
+                continue;
+            }
+            try {
+                if (Files.deleteIfExists(shadows[i].toPath())) {
+                    used -= sizes[i];
+                }
+            } catch (IOException e) {
+                // Still open elsewhere (Windows refuses to delete open files); try the next one
+            }
+        }
+        return used + needed <= quotaBytes;
+    }
+}
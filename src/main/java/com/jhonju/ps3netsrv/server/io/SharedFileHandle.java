@@ -0,0 +1,481 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import static com.jhonju.ps3netsrv.server.utils.Utils.DKEY_EXT;
+import static com.jhonju.ps3netsrv.server.utils.Utils.DOT_STR;
+import static com.jhonju.ps3netsrv.server.utils.Utils.ISO_EXTENSION;
+import static com.jhonju.ps3netsrv.server.utils.Utils.PS3ISO_FOLDER_NAME;
+import static com.jhonju.ps3netsrv.server.utils.Utils.REDKEY_FOLDER_NAME;
+import static com.jhonju.ps3netsrv.server.utils.Utils.SECTOR_SIZE;
+
+import com.jhonju.ps3netsrv.server.enums.EEncryptionType;
+import com.jhonju.ps3netsrv.server.utils.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An open read-only file plus its encryption metadata, shared by every
+ * {@link FileCustom} reading the same {@link FileIdentity}. Reads are
+ * positional, so concurrent sessions need no locking.
+ */
+public final class SharedFileHandle {
+
+    // Larger reads are streaming; caching them would only flush the hot sectors
+    private static final int MAX_CACHED_READ = 64 * 1024;
+
+    // One virtual thread per read: blocking preads of any number of sessions never queue behind each other
+    private static final ExecutorService asyncReaders = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("ps3netsrv-aio-", 0).factory());
+
+    private final FileIdentity identity;
+    private final FileChannel fileChannel;
+    private final MappedFile mappedFile;
+    private final SecretKeySpec decryptionKey;
+    private final EEncryptionType encryptionType;
+    private final RegionIndex regionIndex;
+    private final int cacheFileId;
+    private final ReentrantLock shadowLock = new ReentrantLock();
+    private volatile FileChannel shadowChannel;
+    private volatile FileChannel cookedChannel;
+    // Copies in the cache directory backing the two channels above, guarded by shadowLock
+    private File shadowFile;
+    private File cookedFile;
+    private volatile int cookedSectorSize;
+    private boolean closed;
+
+    // Guarded by FileHandleCache's lock
+    int refCount;
+
+    private SharedFileHandle(FileIdentity identity, FileChannel fileChannel, EEncryptionType encryptionType,
+            byte[] encryptionKey, PS3RegionInfo[] regionInfos) {
+        this.identity = identity;
+        this.fileChannel = fileChannel;
+        this.mappedFile = MappedFile.isMapped(identity) ? new MappedFile(fileChannel, identity.getSize()) : null;
+        if (encryptionKey != null) {
+            this.decryptionKey = new SecretKeySpec(encryptionKey, "AES");
+            this.encryptionType = encryptionType;
+        } else {
+            this.decryptionKey = null;
+            this.encryptionType = EEncryptionType.NONE;
+        }
+        this.regionIndex = new RegionIndex(regionInfos != null ? regionInfos : new PS3RegionInfo[0]);
+        this.cacheFileId = this.encryptionType != EEncryptionType.NONE ? DecryptedSectorCache.fileId(identity) : -1;
+    }
+
+    static SharedFileHandle open(File file, FileIdentity identity) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            EncryptionMetadata metadata = EncryptionMetadata.NONE;
+            boolean isInPS3ISOFolder = file.getParentFile() != null
+                    && file.getParentFile().getName().equalsIgnoreCase(PS3ISO_FOLDER_NAME);
+            if (isInPS3ISOFolder) {
+                metadata = EncryptionMetadataCache.get(identity, file);
+                if (metadata == null) {
+                    metadata = detectEncryption(file, identity, fileChannel);
+                    EncryptionMetadataCache.put(identity, file, metadata);
+                }
+            }
+            return new SharedFileHandle(identity, fileChannel, metadata.getEncryptionType(),
+                    metadata.getEncryptionKey(), metadata.getRegionInfos());
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    private static EncryptionMetadata detectEncryption(File file, FileIdentity identity, FileChannel fileChannel)
+            throws IOException {
+        byte[] encryptionKey;
+        EEncryptionType detectedEncryptionType = EEncryptionType.NONE;
+        PS3RegionInfo[] regionInfos = null;
+        byte[] sec0sec1 = null;
+
+        // Read sec0sec1 early to check for watermarks and region info
+        int sec0Sec1Length = SECTOR_SIZE * 2;
+        if (identity.getSize() >= sec0Sec1Length) {
+            sec0sec1 = new byte[sec0Sec1Length];
+            if (readFully(fileChannel, ByteBuffer.wrap(sec0sec1), 0) != sec0Sec1Length) {
+                sec0sec1 = null;
+            }
+        }
+
+        // First try to get Redump key from external .dkey file
+        encryptionKey = getRedumpKey(file.getParentFile(), file.getAbsolutePath(), file.getName());
+        if (encryptionKey != null) {
+            detectedEncryptionType = EEncryptionType.REDUMP;
+        } else if (sec0sec1 != null && Utils.has3K3YEncryptedWatermark(sec0sec1)) {
+            // If no Redump key, check for 3k3y watermark and extract key if found
+            encryptionKey = Utils.convertD1ToKey(sec0sec1);
+            if (encryptionKey != null) {
+                detectedEncryptionType = EEncryptionType._3K3Y;
+            }
+        }
+
+        // Parse region info from sec0sec1 if we have encryption
+        if (encryptionKey != null && sec0sec1 != null) {
+            regionInfos = Utils.getRegionInfos(sec0sec1);
+        }
+        return new EncryptionMetadata(detectedEncryptionType, encryptionKey, regionInfos);
+    }
+
+    private static byte[] getRedumpKey(File parent, String path, String fileName) throws IOException {
+        File decryptionKeyFile = findRedumpKeyFile(parent, path, fileName);
+        return decryptionKeyFile != null ? getKeyFromFile(decryptionKeyFile) : null;
+    }
+
+    /**
+     * Returns the .dkey file that applies to the ISO, next to it or in the
+     * REDKEY folder, or null when there is none.
+     */
+    static File findRedumpKeyFile(File iso) {
+        return findRedumpKeyFile(iso.getParentFile(), iso.getAbsolutePath(), iso.getName());
+    }
+
+    private static File findRedumpKeyFile(File parent, String path, String fileName) {
+        if (parent != null && parent.getName().equalsIgnoreCase(PS3ISO_FOLDER_NAME)) {
+            int pos = path.lastIndexOf(DOT_STR);
+            if (pos >= 0 && path.substring(pos).equalsIgnoreCase(ISO_EXTENSION)) {
+                File decryptionKeyFile = new File(path.substring(0, pos) + DKEY_EXT);
+                if (!decryptionKeyFile.exists() || decryptionKeyFile.isDirectory()) {
+                    File redKeyFolder = new File(parent.getParentFile(), REDKEY_FOLDER_NAME);
+                    if (redKeyFolder.exists() && redKeyFolder.isDirectory()) {
+                        decryptionKeyFile = new File(redKeyFolder,
+                                fileName.substring(0, fileName.lastIndexOf(DOT_STR)) + DKEY_EXT);
+                    }
+                }
+                if (decryptionKeyFile.exists() && decryptionKeyFile.isFile()) {
+                    return decryptionKeyFile;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] getKeyFromFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return EncryptionKeyHelper.parseKeyFromStream(fis);
+        }
+    }
+
+    public FileIdentity getIdentity() {
+        return identity;
+    }
+
+    public EEncryptionType getEncryptionType() {
+        return encryptionType;
+    }
+
+    /**
+     * Returns the channel when the file's bytes can be sent to the client
+     * exactly as stored (a plain file, or the decrypted shadow of an encrypted
+     * one), or null when reads need decryption.
+     */
+    public FileChannel getZeroCopyChannel() {
+        FileChannel shadow = shadowChannel;
+        if (shadow != null) {
+            return shadow;
+        }
+        return encryptionType == EEncryptionType.NONE ? fileChannel : null;
+    }
+
+    /**
+     * Switches reads to the decrypted copy built by {@link ShadowImageCache}.
+     * Returns false, closing the channel, when the handle is already closed or
+     * has a copy attached.
+     */
+    boolean attachShadow(File file, FileChannel shadow) throws IOException {
+        shadowLock.lock();
+        try {
+            if (!closed && shadowChannel == null) {
+                shadowFile = file;
+                shadowChannel = shadow;
+                return true;
+            }
+        } finally {
+            shadowLock.unlock();
+        }
+        shadow.close();
+        return false;
+    }
+
+    /**
+     * Returns the cooked copy of this raw CD image built by
+     * {@link ShadowImageCache} for the given sector size, or null.
+     */
+    public FileChannel getCookedChannel(int sectorSize) {
+        FileChannel cooked = cookedChannel;
+        return cooked != null && cookedSectorSize == sectorSize ? cooked : null;
+    }
+
+    boolean attachCooked(File file, FileChannel cooked, int sectorSize) throws IOException {
+        shadowLock.lock();
+        try {
+            if (!closed && cookedChannel == null) {
+                cookedFile = file;
+                cookedSectorSize = sectorSize;
+                cookedChannel = cooked;
+                return true;
+            }
+        } finally {
+            shadowLock.unlock();
+        }
+        cooked.close();
+        return false;
+    }
+
+    /**
+     * Positional read (pread): the channel's own position is never used, so one
+     * open handle can serve concurrent readers without locking.
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        FileChannel shadow = shadowChannel;
+        if (shadow != null) {
+            int bytesRead = readFully(shadow, buffer, position);
+            return bytesRead == 0 ? -1 : bytesRead;
+        }
+        return readSource(buffer, position);
+    }
+
+    /**
+     * Reads from the original file, decrypting as needed, even when a shadow is
+     * attached.
+     */
+    int readSource(ByteBuffer buffer, long position) throws IOException {
+        if (encryptionType == EEncryptionType.NONE) {
+            int bytesRead = readStored(buffer, position);
+            return bytesRead == 0 ? -1 : bytesRead;
+        }
+
+        int start = buffer.position();
+        int cached = readCachedSectors(buffer, position);
+        if (cached > 0 && !buffer.hasRemaining()) {
+            return cached;
+        }
+        boolean cacheable = buffer.remaining() <= MAX_CACHED_READ;
+        int bytesRead = readStored(buffer, position + cached);
+        return decryptStored(buffer, start + cached, position + cached, bytesRead, cached, cacheable);
+    }
+
+    /**
+     * Asynchronous form of {@link #read(ByteBuffer, long)}: the stored bytes,
+     * or the shadow's, are read and decrypted, if needed, on a virtual thread
+     * of their own. Mapped reads only copy memory and complete right away.
+     */
+    public CompletableFuture<Integer> readAsync(ByteBuffer buffer, long position) {
+        try {
+            if (mappedFile != null) {
+                return CompletableFuture.completedFuture(read(buffer, position));
+            }
+            if (shadowChannel != null) {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return read(buffer, position);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, asyncReaders);
+            }
+            if (encryptionType == EEncryptionType.NONE) {
+                return readStoredAsync(buffer, position).thenApply(bytesRead -> bytesRead == 0 ? -1 : bytesRead);
+            }
+
+            int start = buffer.position();
+            int cached = readCachedSectors(buffer, position);
+            if (cached > 0 && !buffer.hasRemaining()) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            boolean cacheable = buffer.remaining() <= MAX_CACHED_READ;
+            return readStoredAsync(buffer, position + cached).thenApply(bytesRead -> {
+                try {
+                    return decryptStored(buffer, start + cached, position + cached, bytesRead, cached, cacheable);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Decrypts the encrypted parts of {@code bytesRead} stored bytes found at
+     * {@code diskStart} of the buffer, following {@code cached} bytes already
+     * served from the sector cache.
+     */
+    private int decryptStored(ByteBuffer buffer, int diskStart, long diskPosition, int bytesRead, int cached,
+            boolean cacheable) throws IOException {
+        if (bytesRead == 0) {
+            return cached > 0 ? cached : -1;
+        }
+
+        // Split the read at region boundaries and decrypt only the encrypted parts
+        long end = diskPosition + bytesRead;
+        for (int i = Math.max(0, regionIndex.find(diskPosition)); i < regionIndex.size()
+                && regionIndex.getFirstAddress(i) < end; i++) {
+            if (regionIndex.isEncrypted(i)) {
+                long segmentStart = Math.max(diskPosition, regionIndex.getFirstAddress(i));
+                long segmentEnd = Math.min(end, regionIndex.getLastAddress(i) + 1);
+                if (segmentStart < segmentEnd)
+                    decryptSegment(buffer, diskStart, diskPosition, segmentStart, segmentEnd, cacheable);
+            }
+        }
+        return cached + bytesRead;
+    }
+
+    /**
+     * Serves the leading encrypted sectors of a read from the
+     * {@link DecryptedSectorCache}, stopping at the first sector that is plain
+     * or not cached. Returns the bytes copied into the buffer.
+     */
+    private int readCachedSectors(ByteBuffer buffer, long position) {
+        if (!DecryptedSectorCache.isEnabled()) {
+            return 0;
+        }
+        int start = buffer.position();
+        long current = position;
+        int region = regionIndex.find(current);
+        while (buffer.hasRemaining() && region >= 0 && region < regionIndex.size()) {
+            if (current > regionIndex.getLastAddress(region)) {
+                region++;
+                continue;
+            }
+            if (!regionIndex.isEncrypted(region)) {
+                break;
+            }
+            long lba = current / SECTOR_SIZE;
+            int sectorOffset = (int) (current % SECTOR_SIZE);
+            int length = Math.min(SECTOR_SIZE - sectorOffset, buffer.remaining());
+            if (!DecryptedSectorCache.get(DecryptedSectorCache.key(cacheFileId, lba), sectorOffset, buffer,
+                    buffer.position(), length)) {
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            current += length;
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Decrypts the file range [segmentStart, segmentEnd) held in the buffer.
+     * Whole sectors are decrypted in place; a sector cut by an unaligned read
+     * is read again in full, decrypted on its own and its part copied in.
+     */
+    private void decryptSegment(ByteBuffer buffer, int bufferStart, long position, long segmentStart,
+            long segmentEnd, boolean cacheable) throws IOException {
+        long firstFull = (segmentStart + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE;
+        long lastFull = segmentEnd / SECTOR_SIZE * SECTOR_SIZE;
+        if (firstFull < lastFull) {
+            int index = bufferStart + (int) (firstFull - position);
+            int sectorCount = (int) ((lastFull - firstFull) / SECTOR_SIZE);
+            Utils.decryptData(decryptionKey, buffer, index, sectorCount, firstFull / SECTOR_SIZE);
+            if (cacheable && DecryptedSectorCache.isEnabled()) {
+                for (int i = 0; i < sectorCount; i++) {
+                    DecryptedSectorCache.put(DecryptedSectorCache.key(cacheFileId, firstFull / SECTOR_SIZE + i),
+                            buffer, index + i * SECTOR_SIZE);
+                }
+            }
+        }
+        if (segmentStart % SECTOR_SIZE != 0) {
+            decryptPartialSector(buffer, bufferStart, position, segmentStart,
+                    Math.min(segmentEnd, firstFull));
+        }
+        if (segmentEnd % SECTOR_SIZE != 0 && lastFull >= firstFull) {
+            decryptPartialSector(buffer, bufferStart, position, lastFull, segmentEnd);
+        }
+    }
+
+    private void decryptPartialSector(ByteBuffer buffer, int bufferStart, long position, long from, long to)
+            throws IOException {
+        long sectorStart = from / SECTOR_SIZE * SECTOR_SIZE;
+        byte[] sector = new byte[SECTOR_SIZE];
+        if (readStored(ByteBuffer.wrap(sector), sectorStart) < SECTOR_SIZE) {
+            // A truncated last sector cannot be decrypted; leave it as stored
+            return;
+        }
+        Utils.decryptData(decryptionKey, sector, 0, 1, sectorStart / SECTOR_SIZE);
+        DecryptedSectorCache.put(DecryptedSectorCache.key(cacheFileId, sectorStart / SECTOR_SIZE),
+                ByteBuffer.wrap(sector), 0);
+        buffer.put(bufferStart + (int) (from - position), sector, (int) (from - sectorStart), (int) (to - from));
+    }
+
+    /**
+     * Reads the bytes as stored on disk, from the memory mapping when the file
+     * lies under a mapped root, otherwise with positional reads.
+     */
+    private int readStored(ByteBuffer buffer, long position) throws IOException {
+        if (mappedFile != null) {
+            return mappedFile.read(buffer, position);
+        }
+        return readFully(fileChannel, buffer, position);
+    }
+
+    static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + (buffer.position() - start)) < 0)
+                break;
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Runs {@link #readStored(ByteBuffer, long)} on a virtual thread, through
+     * the same descriptor as synchronous reads.
+     */
+    private CompletableFuture<Integer> readStoredAsync(ByteBuffer buffer, long position) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return readStored(buffer, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, asyncReaders);
+    }
+
+    void close() {
+        File detachedShadow;
+        File detachedCooked;
+        shadowLock.lock();
+        try {
+            closed = true;
+            closeQuietly(fileChannel);
+            closeQuietly(shadowChannel);
+            closeQuietly(cookedChannel);
+            if (mappedFile != null) {
+                mappedFile.close();
+            }
+            detachedShadow = shadowFile;
+            detachedCooked = cookedFile;
+            shadowFile = null;
+            cookedFile = null;
+        } finally {
+            shadowLock.unlock();
+        }
+        ShadowImageCache.onDetached(detachedShadow);
+        ShadowImageCache.onDetached(detachedCooked);
+    }
+
+    /**
+     * Closes one channel, so a failure cannot leave the others open.
+     */
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reference counted registry of the virtual ISOs built from game folders, so
+ * every console opening the same folder shares one {@link VirtualIsoImage}
+ * instead of scanning the tree and generating the metadata again. An image is
+ * replaced on the next open once one of its source directories changed, or
+ * one of its files was found changed while being read. Images
+ * nobody uses are closed on last release, except for the {@link #MAX_IDLE_IMAGES}
+ * most recent ones, kept because a console usually stats a folder and then
+ * opens it.
+ */
+final class VirtualIsoCache {
+
+    private static final int MAX_IDLE_IMAGES = 4;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Map<String, VirtualIsoImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    // Per-folder locks, so two consoles opening a new folder build it only once
+    private static final Map<String, BuildLock> buildLocks = new HashMap<>();
+
+    /**
+     * A folder's build lock with the number of openers holding or waiting for
+     * it; the entry is dropped when the last one is done.
+     */
+    private static class BuildLock {
+        final ReentrantLock lock = new ReentrantLock();
+        // Guarded by the registry lock
+        int users;
+    }
+
+    private VirtualIsoCache() {
+        // Utility class, no instantiation
+    }
+
+    static VirtualIsoImage acquire(IFile rootDir) throws IOException {
+        if (!(rootDir instanceof FileCustom)) {
+            VirtualIsoImage image = new VirtualIsoImage(rootDir);
+            image.refCount = 1;
+            return image;
+        }
+        File root = ((FileCustom) rootDir).getRealFile();
+        String key = root.getCanonicalPath();
+
+        BuildLock buildLock;
+        lock.lock();
+        try {
+            buildLock = buildLocks.computeIfAbsent(key, k -> new BuildLock());
+            buildLock.users++;
+        } finally {
+            lock.unlock();
+        }
+        buildLock.lock.lock();
+        try {
+            VirtualIsoImage image = retain(key);
+            boolean changed = false;
+            if (image != null) {
+                if (image.isUpToDate(root)) {
+                    return image;
+                }
+                lock.lock();
+                try {
+                    images.remove(key, image);
+                } finally {
+                    lock.unlock();
+                }
+                release(image);
+                changed = true;
+            }
+
+            // The tree is scanned without holding the registry lock; only openers of this folder wait.
+            // A saved layout is as old as the image that just went stale, so it is not reused
+            VirtualIsoImage built = changed ? null : VirtualIsoLayoutCache.load(root, rootDir);
+            if (built == null) {
+                built = new VirtualIsoImage(rootDir);
+                VirtualIsoLayoutCache.save(root, built);
+            }
+            lock.lock();
+            try {
+                built.refCount = 1;
+                images.put(key, built);
+            } finally {
+                lock.unlock();
+            }
+            closeIdleImages();
+            return built;
+        } finally {
+            buildLock.lock.unlock();
+            lock.lock();
+            try {
+                if (--buildLock.users == 0) {
+                    buildLocks.remove(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static VirtualIsoImage retain(String key) {
+        lock.lock();
+        try {
+            VirtualIsoImage image = images.get(key);
+            if (image != null) {
+                image.refCount++;
+            }
+            return image;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a reference taken by {@link #acquire(IFile)}. A replaced
+     * image is closed as soon as its last user let go of it.
+     */
+    static void release(VirtualIsoImage image) {
+        boolean close;
+        lock.lock();
+        try {
+            close = --image.refCount == 0 && !images.containsValue(image);
+        } finally {
+            lock.unlock();
+        }
+        if (close) {
+            image.close();
+        } else {
+            closeIdleImages();
+        }
+    }
+
+    private static void closeIdleImages() {
+        List<VirtualIsoImage> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            int idle = 0;
+            for (VirtualIsoImage image : images.values()) {
+                if (image.refCount == 0)
+                    idle++;
+            }
+            // Iteration runs from least to most recently used
+            Iterator<VirtualIsoImage> it = images.values().iterator();
+            while (idle > MAX_IDLE_IMAGES && it.hasNext()) {
+                VirtualIsoImage image = it.next();
+                if (image.refCount == 0) {
+                    it.remove();
+                    evicted.add(image);
+                    idle--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (VirtualIsoImage image : evicted) {
+            image.close();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.jhonju.ps3netsrv.server.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves the layout of built virtual ISOs in the cache directory, so a folder
+ * seen before (e.g. a JB folder with tens of thousands of files) opens without
+ * scanning and generating it again. A layout file holds the folder's
+ * fingerprint (every scanned directory with its modification time, and every
+ * file part with its size and modification time), the file table and the
+ * metadata sectors; the sectors are memory-mapped when loaded.
+ * <p>
+ * Loading only stats the directories; the files are checked against the
+ * fingerprint as they are read, and a layout found out of date there is
+ * discarded. Files are named after the folder's canonical path, rewritten
+ * whenever the folder is rebuilt and count against the cache directory's
+ * quota.
+ */
+final class VirtualIsoLayoutCache {
+
+    static final String LAYOUT_EXTENSION = ".vlayout";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int MAGIC = 0x50335649; //"P3VI"
+    private static final int VERSION = 2;
+
+    private VirtualIsoLayoutCache() {
+        // Utility class, no instantiation
+    }
+
+    private static File layoutFile(File directory, String canonicalRoot) {
+        return new File(directory, FileIdentity.digest(canonicalRoot) + LAYOUT_EXTENSION);
+    }
+
+    /**
+     * Loads the saved layout of the folder, or returns null when there is
+     * none, it is unreadable, or a directory changed since it was saved.
+     * Nothing but the directories is stat-ed, so the load is near-instant
+     * even for tens of thousands of files.
+     */
+    static VirtualIsoImage load(File root, IFile rootDir) {
+        File directory = ShadowImageCache.getCacheDirectory();
+        if (directory == null) {
+            return null;
+        }
+        File file = null;
+        try {
+            String canonicalRoot = root.getCanonicalPath();
+            file = layoutFile(directory, canonicalRoot);
+            if (!file.isFile()) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+                if (SharedFileHandle.readFully(channel, length, 0) != Integer.BYTES) {
+                    return null;
+                }
+                int headerLength = length.getInt(0);
+                if (headerLength <= 0 || Integer.BYTES + (long) headerLength > channel.size()) {
+                    return null;
+                }
+                ByteBuffer header = ByteBuffer.allocate(headerLength);
+                if (SharedFileHandle.readFully(channel, header, Integer.BYTES) != headerLength) {
+                    return null;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(canonicalRoot)) {
+                    return null;
+                }
+
+                int directoryCount = in.readInt();
+                String[] directoryPaths = new String[directoryCount];
+                long[] directoryTimes = new long[directoryCount];
+                for (int i = 0; i < directoryCount; i++) {
+                    directoryPaths[i] = in.readUTF();
+                    directoryTimes[i] = in.readLong();
+                }
+
+                long totalSize = in.readLong();
+                int metadataSize = in.readInt();
+                int fileCount = in.readInt();
+                List<VirtualIsoImage.FileEntry> files = new ArrayList<>(fileCount);
+                for (int i = 0; i < fileCount; i++) {
+                    files.add(readEntry(in, root));
+                }
+
+                long metadataOffset = Integer.BYTES + (long) headerLength;
+                if (metadataOffset + metadataSize != channel.size()) {
+                    return null;
+                }
+                // The mapping stays valid after the channel is closed
+                ByteBuffer metadata = channel.map(FileChannel.MapMode.READ_ONLY, metadataOffset, metadataSize);
+                VirtualIsoImage image = new VirtualIsoImage(rootDir, metadata, totalSize, files, directoryPaths,
+                        directoryTimes);
+                if (!image.isUpToDate(root)) {
+                    return null;
+                }
+                // The modification time orders layouts for quota eviction
+                file.setLastModified(System.currentTimeMillis());
+                return image;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable virtual ISO layout " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static VirtualIsoImage.FileEntry readEntry(DataInputStream in, File root) throws IOException {
+        VirtualIsoImage.FileEntry entry = new VirtualIsoImage.FileEntry();
+        entry.name = in.readUTF();
+        entry.size = in.readLong();
+        entry.rlba = in.readInt();
+        entry.startOffset = in.readLong();
+        entry.endOffset = in.readLong();
+        entry.isMultipart = in.readBoolean();
+        entry.extentParts = in.readInt();
+        int partCount = in.readInt();
+        entry.partSizes = new long[partCount];
+        entry.partTimes = new long[partCount];
+        for (int i = 0; i < partCount; i++) {
+            entry.fileParts.add(new FileCustom(new File(root, in.readUTF())));
+            entry.partSizes[i] = in.readLong();
+            entry.partTimes[i] = in.readLong();
+        }
+        return entry;
+    }
+
+    /**
+     * Deletes the saved layout of the folder, after any write of it still
+     * queued.
+     */
+    static void discard(File root) {
+        File directory = ShadowImageCache.getCacheDirectory();
+        if (directory == null) {
+            return;
+        }
+        try {
+            File file = layoutFile(directory, root.getCanonicalPath());
+            ShadowImageCache.runInBackground(() -> {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException e) {
+                    System.err.println("Could not delete virtual ISO layout " + file + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not delete virtual ISO layout of " + root + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues the layout of a freshly built image for writing. Nothing is
+     * written when one of its files lies outside the folder (e.g. reached
+     * through a link).
+     */
+    static void save(File root, VirtualIsoImage image) {
+        File directory = ShadowImageCache.getCacheDirectory();
+        if (directory == null) {
+            return;
+        }
+        File file;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer metadata = image.getMetadata();
+        try {
+            String canonicalRoot = root.getCanonicalPath();
+            file = layoutFile(directory, canonicalRoot);
+
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(canonicalRoot);
+            String[] directoryPaths = image.getDirectoryPaths();
+            long[] directoryTimes = image.getDirectoryTimes();
+            out.writeInt(directoryPaths.length);
+            for (int i = 0; i < directoryPaths.length; i++) {
+                out.writeUTF(directoryPaths[i]);
+                out.writeLong(directoryTimes[i]);
+            }
+            out.writeLong(image.length());
+            out.writeInt(metadata.remaining());
+            List<VirtualIsoImage.FileEntry> files = image.getFiles();
+            out.writeInt(files.size());
+            String rootPrefix = root.getPath() + File.separator;
+            for (VirtualIsoImage.FileEntry entry : files) {
+                if (!writeEntry(out, entry, rootPrefix)) {
+                    return;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write virtual ISO layout of " + root + ": " + e.getMessage());
+            return;
+        }
+
+        // Written on the cache's background thread, where the quota is managed
+        byte[] header = bytes.toByteArray();
+        ShadowImageCache.writeInBackground(file, Integer.BYTES + (long) header.length + metadata.remaining(),
+                () -> write(file, header, metadata));
+    }
+
+    private static void write(File file, byte[] headerBytes, ByteBuffer metadata) {
+        File temp = new File(file.getParentFile(), file.getName() + TEMP_EXTENSION);
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + headerBytes.length);
+                header.putInt(headerBytes.length).put(headerBytes).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (metadata.hasRemaining()) {
+                    channel.write(metadata);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write virtual ISO layout " + file + ": " + e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(temp.toPath());
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static boolean writeEntry(DataOutputStream out, VirtualIsoImage.FileEntry entry, String rootPrefix)
+            throws IOException {
+        out.writeUTF(entry.name);
+        out.writeLong(entry.size);
+        out.writeInt(entry.rlba);
+        out.writeLong(entry.startOffset);
+        out.writeLong(entry.endOffset);
+        out.writeBoolean(entry.isMultipart);
+        out.writeInt(entry.extentParts);
+        out.writeInt(entry.fileParts.size());
+        for (int i = 0; i < entry.fileParts.size(); i++) {
+            IFile part = entry.fileParts.get(i);
+            if (!(part instanceof FileCustom)) {
+                return false;
+            }
+            String path = ((FileCustom) part).getRealFile().getPath();
+            if (!path.startsWith(rootPrefix)) {
+                return false;
+            }
+            out.writeUTF(path.substring(rootPrefix.length()));
+            out.writeLong(entry.partSizes[i]);
+            out.writeLong(entry.partTimes[i]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+package com.jhonju.ps3netsrv.server.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global pool of direct buffers in three size classes, shared by all sessions.
+ * Read commands lease a buffer, fill it and hand it to the socket, then release
+ * it, so steady-state streaming allocates nothing on the Java heap.
+ */
+public final class BufferPool {
+
+    public static final int SMALL_BUFFER_SIZE = 64 * 1024; //64KB
+    public static final int MEDIUM_BUFFER_SIZE = 512 * 1024; //512KB
+    public static final int LARGE_BUFFER_SIZE = 4 * 1048576; //4MB
+
+    private static final int[] CLASS_SIZES = { SMALL_BUFFER_SIZE, MEDIUM_BUFFER_SIZE, LARGE_BUFFER_SIZE };
+    private static final int[] MAX_IDLE_BUFFERS = { 64, 32, 16 };
+
+    private static final SizeClass[] sizeClasses = new SizeClass[CLASS_SIZES.length];
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    static {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            sizeClasses[i] = new SizeClass(CLASS_SIZES[i], MAX_IDLE_BUFFERS[i]);
+        }
+    }
+
+    private static class SizeClass {
+        final int bufferSize;
+        final int maxIdle;
+        final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        SizeClass(int bufferSize, int maxIdle) {
+            this.bufferSize = bufferSize;
+            this.maxIdle = maxIdle;
+        }
+    }
+
+    private BufferPool() {
+        // Utility class, no instantiation
+    }
+
+    /**
+     * Leases a direct buffer with position 0 and limit {@code size}. Its content
+     * is undefined; it must be given back through {@link #release(ByteBuffer)}.
+     */
+    public static ByteBuffer acquire(int size) {
+        SizeClass sizeClass = sizeClassFor(size);
+        if (sizeClass == null) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = sizeClass.idle.poll();
+        if (buffer != null) {
+            sizeClass.idleCount.decrementAndGet();
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(sizeClass.bufferSize);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        for (SizeClass sizeClass : sizeClasses) {
+            if (sizeClass.bufferSize == buffer.capacity()) {
+                if (sizeClass.idleCount.incrementAndGet() <= sizeClass.maxIdle) {
+                    sizeClass.idle.offer(buffer);
+                } else {
+                    sizeClass.idleCount.decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    private static SizeClass sizeClassFor(int size) {
+        for (SizeClass sizeClass : sizeClasses) {
+            if (size <= sizeClass.bufferSize) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static String getStatistics() {
+        return String.format("Buffer pool: %d hits, %d misses", getHits(), getMisses());
+    }
+}
@@ -1,5 +1,6 @@
 package com.jhonju.ps3netsrv.server.utils;
 
+import com.jhonju.ps3netsrv.server.io.EncryptionMetadataCache;
 import com.jhonju.ps3netsrv.server.io.FileCustom;
 import com.jhonju.ps3netsrv.server.io.IFile;
 
@@ -27,7 +28,7 @@ public class PathResolver {
 
         // 1. Check primary root
         File primaryFile = new File(primaryRoot, clientPath);
-        if (primaryFile.exists()) {
+        if (primaryFile.exists() && !EncryptionMetadataCache.isIndexFile(primaryFile.getName())) {
             results.add(new FileCustom(primaryFile));
         }
 
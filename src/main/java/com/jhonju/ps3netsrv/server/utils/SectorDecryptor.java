@@ -0,0 +1,218 @@
+package com.jhonju.ps3netsrv.server.utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.jhonju.ps3netsrv.server.utils.Utils.SECTOR_SIZE;
+
+/**
+ * AES-CBC decryption of PS3 disc sectors. Each sector is encrypted on its own
+ * with an IV of twelve zero bytes followed by its big-endian LBA. Every thread
+ * keeps its own Cipher, IV array and sector scratch arrays, so decrypting
+ * allocates no output arrays and never calls Cipher.getInstance on the read
+ * path. The ciphertext is staged in scratch because the cipher copies its
+ * input whenever input and output overlap.
+ * <p>
+ * Sectors are independent, so reads of at least
+ * {@link #PARALLEL_THRESHOLD_SECTORS} sectors are split into batches that
+ * run on a shared ForkJoinPool; smaller reads stay on the calling thread.
+ */
+public final class SectorDecryptor {
+
+    private static final String TRANSFORMATION = "AES/CBC/NoPadding";
+    private static final int IV_SIZE = 16;
+    public static final int PARALLEL_THRESHOLD_SECTORS = 64; //128KB
+    private static final int BATCH_SECTORS = 32; //64KB
+
+    private static final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+    private static final LongAdder decryptedBytes = new LongAdder();
+    private static final LongAdder decryptNanos = new LongAdder();
+    private static final ReentrantLock poolLock = new ReentrantLock();
+    // Created on the first large read unless setParallelism has sized it already
+    private static volatile ForkJoinPool pool;
+
+    private static class ThreadState {
+        final Cipher cipher;
+        // Only the last four bytes (the LBA) ever change; the zero prefix is kept
+        final byte[] iv = new byte[IV_SIZE];
+        final byte[] input = new byte[SECTOR_SIZE];
+        final byte[] output = new byte[SECTOR_SIZE];
+
+        ThreadState() {
+            try {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (Exception e) {
+                throw new IllegalStateException("AES/CBC is not available", e);
+            }
+        }
+
+        void init(SecretKeySpec key, long lba) throws Exception {
+            iv[12] = (byte) ((lba >>> 24) & 0xFF);
+            iv[13] = (byte) ((lba >>> 16) & 0xFF);
+            iv[14] = (byte) ((lba >>> 8) & 0xFF);
+            iv[15] = (byte) (lba & 0xFF);
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        }
+    }
+
+    private static class DecryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks only ever run in this process and are never serialized
+        private final transient SecretKeySpec key;
+        private final transient ByteBuffer data;
+        private final int dataOffset;
+        private final int sectorCount;
+        private final long startLBA;
+
+        DecryptTask(SecretKeySpec key, ByteBuffer data, int dataOffset, int sectorCount, long startLBA) {
+            this.key = key;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.sectorCount = sectorCount;
+            this.startLBA = startLBA;
+        }
+
+        @Override
+        protected void compute() {
+            if (sectorCount <= BATCH_SECTORS) {
+                try {
+                    decryptSerial(key, data, dataOffset, sectorCount, startLBA);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int half = (sectorCount / 2 + BATCH_SECTORS - 1) / BATCH_SECTORS * BATCH_SECTORS;
+            invokeAll(new DecryptTask(key, data, dataOffset, half, startLBA),
+                    new DecryptTask(key, data, dataOffset + half * SECTOR_SIZE, sectorCount - half,
+                            startLBA + half));
+        }
+    }
+
+    private SectorDecryptor() {
+        // Utility class, no instantiation
+    }
+
+    /**
+     * Sets how many threads decrypt large reads; 1 keeps all decryption on the
+     * reading thread.
+     */
+    public static void setParallelism(int threads) {
+        poolLock.lock();
+        try {
+            ForkJoinPool previous = pool;
+            pool = new ForkJoinPool(Math.max(1, threads));
+            if (previous != null)
+                previous.shutdown();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private static ForkJoinPool getPool() {
+        ForkJoinPool workers = pool;
+        if (workers != null)
+            return workers;
+        poolLock.lock();
+        try {
+            if (pool == null)
+                pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            return pool;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts {@code sectorCount} whole sectors in place, starting at
+     * {@code dataOffset} in the array.
+     */
+    public static void decrypt(SecretKeySpec key, byte[] data, int dataOffset, int sectorCount, long startLBA)
+            throws IOException {
+        decrypt(key, ByteBuffer.wrap(data), dataOffset, sectorCount, startLBA);
+    }
+
+    /**
+     * Decrypts whole sectors in place inside a (possibly direct) buffer, starting
+     * at the absolute index {@code dataOffset}; the buffer's position is untouched.
+     */
+    public static void decrypt(SecretKeySpec key, ByteBuffer data, int dataOffset, int sectorCount, long startLBA)
+            throws IOException {
+        long start = System.nanoTime();
+        ForkJoinPool workers = getPool();
+        if (sectorCount < PARALLEL_THRESHOLD_SECTORS || workers.getParallelism() <= 1) {
+            decryptSerial(key, data, dataOffset, sectorCount, startLBA);
+        } else {
+            try {
+                workers.invoke(new DecryptTask(key, data, dataOffset, sectorCount, startLBA));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        decryptNanos.add(System.nanoTime() - start);
+        decryptedBytes.add((long) sectorCount * SECTOR_SIZE);
+    }
+
+    private static void decryptArray(SecretKeySpec key, byte[] data, int dataOffset, int sectorCount,
+            long startLBA) throws IOException {
+        ThreadState state = threadState.get();
+        try {
+            for (int i = 0; i < sectorCount; ++i) {
+                int offset = dataOffset + (SECTOR_SIZE * i);
+                System.arraycopy(data, offset, state.input, 0, SECTOR_SIZE);
+                state.init(key, startLBA + i);
+                state.cipher.doFinal(state.input, 0, SECTOR_SIZE, data, offset);
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void decryptSerial(SecretKeySpec key, ByteBuffer data, int dataOffset, int sectorCount,
+            long startLBA) throws IOException {
+        if (data.hasArray()) {
+            decryptArray(key, data.array(), data.arrayOffset() + dataOffset, sectorCount, startLBA);
+            return;
+        }
+        ThreadState state = threadState.get();
+        try {
+            for (int i = 0; i < sectorCount; ++i) {
+                int offset = dataOffset + (SECTOR_SIZE * i);
+                // Cipher copies direct buffers through fresh temporary arrays, so
+                // stage the sector through the per-thread scratch instead
+                data.get(offset, state.input, 0, SECTOR_SIZE);
+                state.init(key, startLBA + i);
+                state.cipher.doFinal(state.input, 0, SECTOR_SIZE, state.output, 0);
+                data.put(offset, state.output, 0, SECTOR_SIZE);
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static long getDecryptedBytes() {
+        return decryptedBytes.sum();
+    }
+
+    /**
+     * Average decryption throughput in MB/s, measured over the wall time of
+     * the decrypt calls only.
+     */
+    public static double getThroughputMBps() {
+        long nanos = decryptNanos.sum();
+        return nanos == 0 ? 0 : (decryptedBytes.sum() / 1048576.0) / (nanos / 1e9);
+    }
+
+    public static String getStatistics() {
+        return String.format("Decryption: %d MB, %.1f MB/s", getDecryptedBytes() / 1048576, getThroughputMBps());
+    }
+}
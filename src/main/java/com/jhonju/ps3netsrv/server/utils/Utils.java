@@ -3,25 +3,14 @@ package com.jhonju.ps3netsrv.server.utils;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Locale;
 
 import com.jhonju.ps3netsrv.server.io.PS3RegionInfo;
 
@@ -60,10 +49,7 @@ public class Utils {
             0x42, 0x74, 0x3A, (byte) 0xEF, (byte) 0xAA, 0x18, 0x62, (byte) 0x87
     };
 
-    private static final String osName = System.getProperty("os.name");
-    public static final boolean isWindows = osName.toLowerCase().startsWith("windows");
-    public static final boolean isOSX = osName.toLowerCase().contains("os x");
-    public static final boolean isSolaris = osName.toLowerCase().contains("sunos");
+    private static final byte[] ZERO_SECTOR = new byte[SECTOR_SIZE];
 
     public static byte[] charArrayToByteArray(char[] chars) {
         CharBuffer charBuffer = CharBuffer.wrap(chars);
@@ -96,6 +82,14 @@ public class Utils {
         return (byteArray.length == 0 || Arrays.equals(byteArray, new byte[byteArray.length]));
     }
 
+    public static void putZeros(ByteBuffer buffer, int count) {
+        while (count > 0) {
+            int chunk = Math.min(count, ZERO_SECTOR.length);
+            buffer.put(ZERO_SECTOR, 0, chunk);
+            count -= chunk;
+        }
+    }
+
     public static ByteBuffer readCommandData(InputStream in, int size) throws IOException {
         byte[] data = new byte[size];
         if (in.read(data) < 0)
@@ -120,30 +114,14 @@ public class Utils {
         return regionInfos;
     }
 
-    public static void decryptData(SecretKeySpec key, byte[] iv, byte[] data, int dataOffset, int sectorCount,
-            long startLBA)
+    public static void decryptData(SecretKeySpec key, byte[] data, int dataOffset, int sectorCount, long startLBA)
             throws IOException {
-        try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-            for (int i = 0; i < sectorCount; ++i) {
-                IvParameterSpec ivParams = new IvParameterSpec(resetIV(iv, startLBA + i));
-                cipher.init(Cipher.DECRYPT_MODE, key, ivParams);
-                int offset = dataOffset + (SECTOR_SIZE * i);
-                byte[] decryptedSector = cipher.doFinal(data, offset, SECTOR_SIZE);
-                System.arraycopy(decryptedSector, 0, data, offset, SECTOR_SIZE);
-            }
-        } catch (Exception e) {
-            throw new IOException(e);
-        }
+        SectorDecryptor.decrypt(key, data, dataOffset, sectorCount, startLBA);
     }
 
-    private static byte[] resetIV(byte[] iv, long lba) {
-        Arrays.fill(iv, (byte) 0);
-        iv[12] = (byte) ((lba >>> 24) & 0xFF);
-        iv[13] = (byte) ((lba >>> 16) & 0xFF);
-        iv[14] = (byte) ((lba >>> 8) & 0xFF);
-        iv[15] = (byte) (lba & 0xFF);
-        return iv;
+    public static void decryptData(SecretKeySpec key, ByteBuffer data, int dataOffset, int sectorCount,
+            long startLBA) throws IOException {
+        SectorDecryptor.decrypt(key, data, dataOffset, sectorCount, startLBA);
     }
 
     public static boolean has3K3YEncryptedWatermark(byte[] sec0sec1) {
@@ -186,174 +164,4 @@ public class Utils {
             throw new IOException("Failed to convert D1 to key", e);
         }
     }
-
-    private static Date parseOSXDate(Iterator<String> it) {
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd hh:mm:ss yyyy", Locale.getDefault());
-        while (it.hasNext()) {
-            String line = it.next();
-            if (line != null) {
-                String[] dateStr = line.replaceAll("\\s+", " ").split(" ");
-                if (dateStr.length > 10) {
-                    try {
-                        return sdf.parse(dateStr[5] + " " + dateStr[6] + " " + dateStr[7] + " " + dateStr[8]);
-                    } catch (Exception e) {
-                        System.err.printf("/nCould not parse date %s", Arrays.toString(dateStr));
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
-    private enum FileStat {
-        CREATION_DATE, ACCESS_DATE
-    }
-
-    private static Date getFileStatsWindows(String filePath, FileStat fileStat) {
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy hh:mm");
-            String command = (fileStat == FileStat.CREATION_DATE ? "/TC" : "/TA");
-            Process process = Runtime.getRuntime().exec(new String[] { "dir", command, filePath });
-            process.waitFor();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] arr = line.split("\\s+");
-                    String date = arr[0] + " " + arr[1];
-                    try {
-                        return sdf.parse(date);
-                    } catch (ParseException ignored) {
-                        System.err.printf("/nCould not parse date %s", date);
-                    }
-                }
-            }
-        } catch (Exception ignored) {
-        }
-        return null;
-    }
-
-    private static Date getFileStatsOSX(String filePath, FileStat fileStat) {
-        try {
-            String command = (fileStat == FileStat.CREATION_DATE ? "-laUT" : "-lauT");
-            Process process = Runtime.getRuntime().exec(new String[] { "ls", command, filePath });
-            process.waitFor();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                List<String> lines = new ArrayList<>();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    lines.add(line);
-                }
-                return parseOSXDate(lines.iterator());
-            }
-        } catch (Exception ignored) {
-        }
-        return null;
-    }
-
-    private static long tryParseDate(String pattern, String value) {
-        if (value != null) {
-            try {
-                return new SimpleDateFormat(pattern).parse(value).getTime();
-            } catch (ParseException e) {
-                System.err.printf("/nCould not parse date %s", value);
-                return 0;
-            }
-        }
-        System.err.println("Could not parse a null value");
-        return 0;
-    }
-
-    public static long[] getFileStats(File file) {
-        long[] stats = { 0, 0 };
-
-        String filePath;
-        try {
-            filePath = file.getCanonicalPath();
-        } catch (IOException e) {
-            return stats;
-        }
-
-        if (isWindows) {
-            Date creationDate = getFileStatsWindows(filePath, FileStat.CREATION_DATE);
-            if (creationDate != null) {
-                stats[0] = creationDate.getTime();
-            }
-
-            Date accessDate = getFileStatsWindows(filePath, FileStat.ACCESS_DATE);
-            if (accessDate != null) {
-                stats[1] = accessDate.getTime();
-            }
-        } else if (isOSX) {
-            Date creationDate = getFileStatsOSX(filePath, FileStat.CREATION_DATE);
-            if (creationDate != null) {
-                stats[0] = creationDate.getTime();
-            }
-
-            Date accessDate = getFileStatsOSX(filePath, FileStat.ACCESS_DATE);
-            if (accessDate != null) {
-                stats[1] = accessDate.getTime();
-            }
-        } else if (isSolaris) {
-            try {
-                Process process = Runtime.getRuntime()
-                        .exec(new String[] { "ls", "-E", filePath, "| grep 'crtime=' | sed 's/^.*crtime=//'" });
-                process.waitFor();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String line = reader.readLine();
-                reader.close();
-                if (line == null) {
-                    System.err.println("Could not determine creation date for file: " + file.getName());
-                } else {
-                    stats[0] = tryParseDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", line);
-                }
-            } catch (Exception ignored) {
-            }
-
-            try {
-                Process process = Runtime.getRuntime().exec(new String[] { "ls", "-lauE", filePath });
-                process.waitFor();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String line = reader.readLine();
-                reader.close();
-                if (line == null) {
-                    System.err.println("Could not determine last access date for file: " + file.getName());
-                } else {
-                    String[] parts = line.trim().split("\\s+");
-                    if (parts.length >= 8) {
-                        String month = parts[5];
-
-                        Calendar cal = Calendar.getInstance();
-                        cal.setTime(new Date());
-                        int year = cal.get(Calendar.YEAR);
-                        int actualMonth = cal.get(Calendar.MONTH);
-
-                        cal.setTime(new SimpleDateFormat("MMM").parse(month));
-                        if (cal.get(Calendar.MONTH) > actualMonth)
-                            year--;
-
-                        stats[1] = tryParseDate("MMM dd yyyy HH:mm",
-                                month + " " + parts[6] + " " + year + " " + parts[7]);
-                    }
-                }
-            } catch (Exception ignored) {
-            }
-        } else {
-            stats[0] = file.lastModified();
-
-            try {
-                Process process = Runtime.getRuntime().exec(new String[] { "stat", "-c", "%x", filePath });
-                process.waitFor();
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                    String line = reader.readLine();
-                    if (line != null) {
-                        if (!line.contains("+"))
-                            line = line.trim() + " +0000";
-                        stats[1] = tryParseDate("yyyy-MM-dd HH:mm:ss.SSSSSSSSS Z", line);
-                    }
-                }
-            } catch (Exception ignored) {
-            }
-        }
-        return stats;
-    }
 }